@@ -28,15 +28,58 @@ CREATE INDEX IF NOT EXISTS idx_ai_embedding_metadata
 CREATE INDEX IF NOT EXISTS idx_ai_embedding_created_at
     ON public.ai_embedding USING btree (created_at DESC) TABLESPACE pg_default;
 
-CREATE INDEX IF NOT EXISTS idx_ai_embedding_is_deleted
-    ON public.ai_embedding USING btree (is_deleted) TABLESPACE pg_default;
+-- Mọi truy vấn đều lọc is_deleted = 0: dùng partial index thay cho btree trên is_deleted (chỉ 2 giá trị, planner gần như không dùng)
+DROP INDEX IF EXISTS public.idx_ai_embedding_is_deleted;
+
+-- kNN (ORDER BY embedding <=> ?) chỉ trên bản ghi chưa xóa
+CREATE INDEX IF NOT EXISTS idx_ai_embedding_embedding_active
+    ON public.ai_embedding USING hnsw (embedding vector_cosine_ops)
+    WHERE is_deleted = 0 TABLESPACE pg_default;
+
+-- Kiểm tra trùng content (hash index: so sánh bằng, không giới hạn độ dài như btree)
+CREATE INDEX IF NOT EXISTS idx_ai_embedding_content_active
+    ON public.ai_embedding USING hash (content)
+    WHERE is_deleted = 0 TABLESPACE pg_default;
+
+-- Manifest / đếm theo source_file
+CREATE INDEX IF NOT EXISTS idx_ai_embedding_source_file_active
+    ON public.ai_embedding USING btree ((metadata->>'source_file'))
+    WHERE is_deleted = 0 TABLESPACE pg_default;
+
+-- Job compaction tìm bản ghi đã soft delete quá thời hạn lưu giữ
+CREATE INDEX IF NOT EXISTS idx_ai_embedding_deleted_updated_at
+    ON public.ai_embedding USING btree (updated_at)
+    WHERE is_deleted = 1 TABLESPACE pg_default;
+
+-- Mỗi (source_file, content_hash) chỉ có một bản ghi chưa xóa: đích của INSERT ... ON CONFLICT khi bulk insert
+-- (theo từng file: cùng một entry ở hai file kho tri thức là hai bản ghi độc lập)
+DROP INDEX IF EXISTS public.uq_ai_embedding_content_hash_active;
+CREATE UNIQUE INDEX IF NOT EXISTS uq_ai_embedding_source_file_content_hash_active
+    ON public.ai_embedding USING btree ((metadata->>'source_file'), (metadata->>'content_hash'))
+    WHERE is_deleted = 0 TABLESPACE pg_default;
+
+-- ============================================
+-- 4. Bảng lưu trữ bản ghi đã soft delete bị dọn khỏi ai_embedding
+--    (vector-search.compaction.mode = archive, xem EmbeddingCompactionService)
+-- ============================================
+CREATE TABLE IF NOT EXISTS public.ai_embedding_archive (
+    id uuid NOT NULL,
+    content text NOT NULL,
+    metadata jsonb NULL,
+    embedding vector(1536) NOT NULL,
+    created_at timestamp with time zone NOT NULL,
+    updated_at timestamp with time zone NOT NULL,
+    archived_at timestamp with time zone NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    CONSTRAINT ai_embedding_archive_pkey PRIMARY KEY (id)
+) TABLESPACE pg_default;
 
 -- ============================================
--- 4. Enable RLS (Row Level Security) - Optional
+-- 5. Enable RLS (Row Level Security) - Optional
 -- ============================================
 ALTER TABLE public.ai_embedding ENABLE ROW LEVEL SECURITY;
+ALTER TABLE public.ai_embedding_archive ENABLE ROW LEVEL SECURITY;
 
 -- ============================================
--- 5. Kiểm tra table đã tạo
+-- 6. Kiểm tra table đã tạo
 -- ============================================
 SELECT * FROM public.ai_embedding LIMIT 1;
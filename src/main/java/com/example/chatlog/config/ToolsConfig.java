@@ -3,8 +3,10 @@ package com.example.chatlog.config;
 import com.example.chatlog.dto.ChatRequest;
 import com.example.chatlog.dto.RequestBody;
 import com.example.chatlog.service.impl.AiQueryService;
+import com.example.chatlog.utils.SearchResponseCompactor;
 import org.springframework.ai.tool.annotation.Tool;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 /**
@@ -16,6 +18,16 @@ public class ToolsConfig {
 
     @Autowired
     private AiQueryService aiQueryService;
+
+    // Chuyển response JSON thành bảng gọn trước khi đưa cho LLM (xem SearchResponseCompactor)
+    @Value("${elastic.compact.enabled:true}")
+    private boolean compactEnabled;
+
+    @Value("${elastic.compact.max-rows:200}")
+    private int compactMaxRows;
+
+    @Value("${elastic.compact.max-chars:30000}")
+    private int compactMaxChars;
     
     // Thread-local storage để lưu data và query từ tool call
     private static final ThreadLocal<ToolResult> toolResultStorage = new ThreadLocal<>();
@@ -125,19 +137,27 @@ public class ToolsConfig {
             String actualQuery = results != null && results.length >= 2 ? results[1] : dslQuery;
             
             // ✅ VALIDATE DATA QUALITY
-            boolean isError = logData.toLowerCase().startsWith("❌") || 
+            // Response JSON được đọc một lần bằng streaming parser: vừa lấy trạng thái vừa tạo bản gọn cho LLM
+            SearchResponseCompactor.Result compacted = compactEnabled && logData.trim().startsWith("{")
+                ? SearchResponseCompactor.compact(logData, compactMaxRows, compactMaxChars)
+                : null;
+
+            boolean isError = compacted != null ? compacted.error() :
+                             logData.toLowerCase().startsWith("❌") ||
                              logData.toLowerCase().contains("error executing") ||
                              logData.toLowerCase().contains("elasticsearch error");
             
-            boolean isEmpty = (logData.contains("\"hits\":[]") || logData.contains("\"hits\": []")) && 
+            boolean isEmpty = compacted != null ? !compacted.error() && !compacted.hasData() :
+                             (logData.contains("\"hits\":[]") || logData.contains("\"hits\": []")) &&
                              !logData.contains("\"aggregations\"") &&
                              !logData.contains("\"aggs\"");
             
-            // Detect "0 hits but has data" case
-            boolean hasValidHits = logData.contains("\"hits\":{\"hits\":[") && 
-                                  !logData.contains("\"hits\":{\"hits\":[]");
+            // compact tắt (hoặc response không phải JSON): giữ cách nhận biết bằng chuỗi như trước
+            boolean hasValidHits = compacted != null ? compacted.hitCount() > 0 :
+                                  (logData.contains("\"hits\":[{") || logData.contains("\"hits\": [{"));
             
-            boolean hasAggregations = logData.contains("\"aggregations\"") || 
+            boolean hasAggregations = compacted != null ? compacted.hasAggregations() :
+                                     logData.contains("\"aggregations\"") ||
                                      logData.contains("\"aggs\"");
             
             // Data is valid if has hits OR aggregations
@@ -153,7 +173,8 @@ public class ToolsConfig {
             System.out.println("║ ✅ [TOOL SUCCESS] Query executed                          ║");
             System.out.println("╚════════════════════════════════════════════════════════════╝");
             System.out.println("   ✅ Status: SUCCESS");
-            System.out.println("   📊 Result length: " + logData.length() + " chars");
+            System.out.println("   📊 Result length: " + logData.length() + " chars"
+                + (compacted != null ? " → compact " + compacted.text().length() + " chars" : ""));
             System.out.println("   📊 Has valid data: " + hasValidData);
             System.out.println("   📊 Has hits: " + hasValidHits);
             System.out.println("   📊 Has aggregations: " + hasAggregations);
@@ -208,6 +229,38 @@ public class ToolsConfig {
             
             // ✅ SUCCESS WITH DATA
             System.out.println("   ✅ Returning SUCCESS response with valid data to AI");
+            if (compacted != null) {
+                return String.format("""
+                    ✅ QUERY SUCCESSFUL - DATA RETRIEVED (Execution time: %dms)
+                    
+                    Compact Elasticsearch result:
+                    %s
+                    FORMAT:
+                    - total_hits: total matching documents (hits table only lists returned rows)
+                    - hits: one row per log; "constant" lines hold values shared by every row; "×n" = n identical rows
+                    - hits columns "highlight.*", "sort", "inner_hits.*": highlighted fragments, sort values, nested hits
+                    - metrics: single-value aggregations (name = value)
+                    - aggregation: one row per bucket, parent bucket keys first, then doc_count and sub-metrics
+                    %s
+                    IMPORTANT INSTRUCTIONS:
+                    1. Read the hits table for log entries
+                    2. Read metrics and aggregation tables for statistics
+                    3. Analyze the data and provide CLEAR ANSWER to user's question
+                    4. Include relevant numbers, IPs, users, patterns found
+                    5. End with the query used in markdown code block
+                    
+                    Query used:
+                    ```json
+                    %s
+                    ```
+                    
+                    Now analyze the data above and provide a comprehensive answer.
+                    """, toolExecutionTime, compacted.text(),
+                    (compacted.truncated() ? "- Some rows were omitted (row/size budget); use total_hits and doc_count for totals\n" : "")
+                        + (compacted.failedShards() > 0 ? "- PARTIAL RESULTS: " + compacted.failedShards()
+                            + " shard(s) failed (see shard_failure lines); tell the user the numbers may be incomplete\n" : ""),
+                    actualQuery);
+            }
             return String.format("""
                 ✅ QUERY SUCCESSFUL - DATA RETRIEVED (Execution time: %dms)
                 
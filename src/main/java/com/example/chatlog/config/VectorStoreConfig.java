@@ -1,8 +1,7 @@
 package com.example.chatlog.config;
 
+import com.example.chatlog.utils.PreEmbeddedVectorStore;
 import org.springframework.ai.embedding.EmbeddingModel;
-import org.springframework.ai.vectorstore.SimpleVectorStore;
-import org.springframework.ai.vectorstore.VectorStore;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -10,11 +9,12 @@ import org.springframework.context.annotation.Configuration;
 public class VectorStoreConfig {
 
     @Bean
-    public VectorStore vectorStore(EmbeddingModel embeddingModel) {
+    public PreEmbeddedVectorStore vectorStore(EmbeddingModel embeddingModel) {
         // Tạo SimpleVectorStore với EmbeddingModel
         // Vector Store này sẽ được sử dụng trong bộ nhớ làm cache
         // Embeddings chính được lưu trữ trong PostgreSQL/Supabase Database
-        SimpleVectorStore vectorStore = SimpleVectorStore.builder(embeddingModel).build();
+        // Dữ liệu được nạp từ DB bằng vector đã lưu (VectorStoreHydrationService), không embed lại
+        PreEmbeddedVectorStore vectorStore = new PreEmbeddedVectorStore(embeddingModel);
         
         System.out.println("✅ Vector Store initialized (in-memory with Database persistence)");
         System.out.println("   Embeddings will be persisted in: PostgreSQL/Supabase Database");
@@ -0,0 +1,39 @@
+package com.example.chatlog.controller;
+
+import com.example.chatlog.service.impl.EmbeddingCatalogService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Actuator endpoint: /actuator/embeddingcatalog
+ * Xem số lượng embeddings theo source_file mà không cần query database
+ */
+@Component
+@Endpoint(id = "embeddingcatalog")
+public class EmbeddingCatalogEndpoint {
+
+    @Autowired
+    private EmbeddingCatalogService embeddingCatalogService;
+
+    @ReadOperation
+    public Map<String, Object> catalog() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("total", embeddingCatalogService.total());
+        result.put("bySourceFile", embeddingCatalogService.snapshot());
+        result.put("lastRefreshedAt", String.valueOf(embeddingCatalogService.getLastRefreshedAt()));
+        return result;
+    }
+
+    // POST /actuator/embeddingcatalog: đối soát lại với database
+    @WriteOperation
+    public Map<String, Object> refresh() {
+        embeddingCatalogService.refresh();
+        return catalog();
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.chatlog.controller;
+
+import com.example.chatlog.service.impl.EmbeddingCompactionService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Actuator endpoint: /actuator/embeddingmaintenance
+ * Xem bloat của ai_embedding (soft delete, dead tuple, kích thước bảng / index) và kết quả compaction gần nhất
+ */
+@Component
+@Endpoint(id = "embeddingmaintenance")
+public class EmbeddingMaintenanceEndpoint {
+
+    @Autowired
+    private EmbeddingCompactionService embeddingCompactionService;
+
+    // Số liệu đã cache từ lần đo gần nhất (lúc khởi động xong, định kỳ stats-interval-ms, sau compaction), không quét bảng mỗi lần GET
+    @ReadOperation
+    public Map<String, Object> report() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("stats", embeddingCompactionService.getLastStats());
+        result.put("lastRun", embeddingCompactionService.getLastRun());
+        return result;
+    }
+
+    // POST /actuator/embeddingmaintenance: chạy compaction ngay
+    @WriteOperation
+    public Map<String, Object> compact() {
+        return embeddingCompactionService.compact();
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.chatlog.controller;
+
+import com.example.chatlog.service.AiEmbeddingService;
+import com.example.chatlog.service.impl.InMemoryVectorIndexService;
+import com.example.chatlog.service.impl.KnowledgeBaseIndexingService;
+import com.example.chatlog.service.impl.VectorStoreHydrationService;
+import com.example.chatlog.utils.PreEmbeddedVectorStore;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+/**
+ * Health indicator "knowledgeBase", nằm trong nhóm readiness: /actuator/health/readiness chỉ UP khi vector index dùng được
+ *
+ * - Đồng bộ kho tri thức xong (hoặc lỗi) và index dùng được → UP; đồng bộ xong nhưng rebuild index bộ nhớ lỗi
+ *   thì vẫn OUT_OF_SERVICE (tìm kiếm sẽ âm thầm fallback pgvector)
+ * - vector-search.indexing.serve-stale = true và index đã có dữ liệu (snapshot từ lần chạy trước) → UP
+ *   trong lúc đồng bộ chạy nền, để rolling restart không phải chờ embed xong
+ * - Còn lại → OUT_OF_SERVICE, kèm tiến độ đồng bộ
+ *
+ * "Index" là nơi mode hiện tại thực sự tìm kiếm: pgvector → database (luôn UP), simple → SimpleVectorStore
+ * (tắt hydrate thì tìm thẳng trong database), hnsw / int8 / hybrid → index trong bộ nhớ
+ */
+@Component
+public class KnowledgeBaseHealthIndicator implements HealthIndicator {
+
+    @Autowired
+    private KnowledgeBaseIndexingService knowledgeBaseIndexingService;
+
+    @Autowired
+    private InMemoryVectorIndexService inMemoryVectorIndexService;
+
+    @Autowired
+    private VectorStoreHydrationService vectorStoreHydrationService;
+
+    @Autowired
+    private PreEmbeddedVectorStore vectorStore;
+
+    @Autowired
+    private AiEmbeddingService aiEmbeddingService;
+
+    @Value("${vector-search.indexing.serve-stale:true}")
+    private boolean serveStale;
+
+    @Value("${vector-search.mode:hnsw}")
+    private String searchMode;
+
+    @Override
+    public Health health() {
+        KnowledgeBaseIndexingService.IndexingStatus status = knowledgeBaseIndexingService.getStatus();
+        boolean pgvector = "pgvector".equalsIgnoreCase(searchMode);
+        boolean indexUsable = isIndexUsable();
+        boolean synced = status == KnowledgeBaseIndexingService.IndexingStatus.COMPLETED;
+        boolean syncedWithIndex = synced && indexUsable;
+        boolean failedWithIndex = status == KnowledgeBaseIndexingService.IndexingStatus.FAILED && indexUsable;
+        boolean stale = !synced && !pgvector && serveStale && indexUsable;
+        // Kho tri thức rỗng: index bộ nhớ không bao giờ "ready" nhưng cũng không có gì để tìm
+        boolean syncedEmpty = synced && aiEmbeddingService.countAllNotDeleted() == 0;
+
+        boolean up = pgvector || syncedWithIndex || failedWithIndex || stale || syncedEmpty;
+        Health.Builder builder = up ? Health.up() : Health.outOfService();
+        return builder
+            .withDetail("mode", searchMode)
+            .withDetail("indexing", knowledgeBaseIndexingService.getProgress())
+            .withDetail("indexSize", "simple".equalsIgnoreCase(searchMode) ? vectorStore.size() : inMemoryVectorIndexService.size())
+            .withDetail("indexUsable", indexUsable)
+            .withDetail("servingStaleIndex", stale)
+            .build();
+    }
+
+    // Nơi mode hiện tại tìm kiếm đã có dữ liệu chưa
+    private boolean isIndexUsable() {
+        if ("pgvector".equalsIgnoreCase(searchMode)) {
+            return true;
+        }
+        if ("simple".equalsIgnoreCase(searchMode)) {
+            return !vectorStoreHydrationService.isEnabled() || vectorStore.isHydrated();
+        }
+        return inMemoryVectorIndexService.isReady();
+    }
+}
@@ -0,0 +1,16 @@
+package com.example.chatlog.dto;
+
+import java.util.List;
+
+/**
+ * Kết quả bulk insert ai_embedding
+ *
+ * @param inserted Các dòng thực sự được insert
+ * @param skipped Số dòng bị bỏ qua vì đã có bản ghi chưa xóa cùng source_file và content_hash
+ */
+public record BulkInsertResult(List<EmbeddingInsertRow> inserted, int skipped) {
+
+    public int insertedCount() {
+        return inserted.size();
+    }
+}
@@ -0,0 +1,15 @@
+package com.example.chatlog.dto;
+
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Một bản ghi ai_embedding chờ bulk insert
+ *
+ * @param id Id sinh sẵn phía ứng dụng (dùng để biết dòng nào thực sự được insert qua RETURNING id)
+ * @param content Nội dung đã embed
+ * @param embedding Vector (bind binary dạng real[])
+ * @param metadata Metadata, nên có source_file + content_hash để ON CONFLICT bỏ qua bản trùng
+ */
+public record EmbeddingInsertRow(UUID id, String content, float[] embedding, Map<String, Object> metadata) {
+}
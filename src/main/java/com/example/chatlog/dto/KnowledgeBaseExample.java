@@ -0,0 +1,39 @@
+package com.example.chatlog.dto;
+
+import com.example.chatlog.entity.ai.AiEmbedding;
+
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Read model cho kết quả vector search: chỉ các trường cần để dựng prompt, đã tách sẵn khỏi metadata
+ *
+ * @param id Id bản ghi ai_embedding (dùng làm key cache phần prompt đã format)
+ * @param question metadata.question
+ * @param scenario metadata.scenario (có thể null)
+ * @param phase metadata.phase (có thể null)
+ * @param queryDsl metadata.query_dsl dạng chuỗi JSON (có thể null)
+ * @param content Nội dung đã embed
+ */
+public record KnowledgeBaseExample(UUID id, String question, String scenario, String phase,
+                                   String queryDsl, String content) {
+
+    /**
+     * Tách trường từ entity đầy đủ (dùng cho index trong bộ nhớ)
+     */
+    public static KnowledgeBaseExample from(AiEmbedding embedding) {
+        Map<String, Object> metadata = embedding.getMetadata() != null ? embedding.getMetadata() : Map.of();
+        return new KnowledgeBaseExample(
+            embedding.getId(),
+            asString(metadata.get("question")),
+            asString(metadata.get("scenario")),
+            asString(metadata.get("phase")),
+            asString(metadata.get("query_dsl")),
+            embedding.getContent()
+        );
+    }
+
+    private static String asString(Object value) {
+        return value != null ? value.toString() : null;
+    }
+}
@@ -0,0 +1,13 @@
+package com.example.chatlog.dto;
+
+import java.util.UUID;
+
+/**
+ * Một dòng manifest của source file: bản ghi ai_embedding chưa xóa và hash nội dung của nó
+ *
+ * @param id Id bản ghi ai_embedding
+ * @param question Câu hỏi (content)
+ * @param contentHash metadata.content_hash (tính lại từ metadata với bản ghi cũ chưa có hash)
+ */
+public record KnowledgeBaseManifestEntry(UUID id, String question, String contentHash) {
+}
@@ -0,0 +1,16 @@
+package com.example.chatlog.dto;
+
+/**
+ * Kết quả vector search kèm điểm
+ *
+ * @param example Các trường của bản ghi ai_embedding cần cho prompt
+ * @param similarity Cosine similarity với query (dùng cho ngưỡng min-similarity)
+ * @param score Điểm xếp hạng (bằng similarity với vector search, RRF đã chuẩn hóa về [0, 1] với hybrid)
+ * @param vector Vector của bản ghi dùng để tính độ trùng lặp khi MMR (có thể null)
+ */
+public record ScoredEmbedding(KnowledgeBaseExample example, double similarity, double score, float[] vector) {
+
+    public static ScoredEmbedding of(KnowledgeBaseExample example, double similarity, float[] vector) {
+        return new ScoredEmbedding(example, similarity, similarity, vector);
+    }
+}
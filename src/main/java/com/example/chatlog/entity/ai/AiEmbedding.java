@@ -7,7 +7,9 @@ import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.hibernate.annotations.ColumnTransformer;
 import org.hibernate.annotations.JdbcTypeCode;
+import org.hibernate.annotations.Type;
 import org.hibernate.type.SqlTypes;
 
 import java.io.Serializable;
@@ -36,10 +38,11 @@ public class AiEmbedding implements Serializable {
     @JdbcTypeCode(SqlTypes.JSON)
     private Map<String, Object> metadata;
 
-    // Lưu dưới dạng String để tránh lỗi deserialization
-    // PostgreSQL vẫn lưu dưới dạng vector, nhưng Java nhận/gửi dưới dạng String "[0.1,0.2,...]"
+    // PostgreSQL lưu dưới dạng vector, Java nhận/gửi dưới dạng float[] qua real[] binary (xem PgVectorType)
     @Column(name = "embedding", columnDefinition = "vector(1536)")
-    private String embedding;
+    @Type(PgVectorType.class)
+    @ColumnTransformer(read = "CAST(embedding AS real[])", write = "CAST(? AS vector)")
+    private float[] embedding;
 
     @Column(name = "created_at", nullable = false, updatable = false,
             columnDefinition = "TIMESTAMP WITH TIME ZONE DEFAULT CURRENT_TIMESTAMP")
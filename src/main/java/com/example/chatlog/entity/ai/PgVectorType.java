@@ -0,0 +1,85 @@
+package com.example.chatlog.entity.ai;
+
+import com.example.chatlog.utils.VectorUtils;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.usertype.UserType;
+
+import java.io.Serializable;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+
+/**
+ * Hibernate UserType ánh xạ cột pgvector sang float[]
+ *
+ * Ghi: bind trực tiếp float[] qua JDBC - PgJDBC gửi dưới dạng real[] binary (4 byte/phần tử),
+ * Postgres cast real[] → vector phía server, không còn format/parse chuỗi thập phân
+ * Đọc: cột được đọc qua CAST(embedding AS real[]) (xem @ColumnTransformer trên entity),
+ * vẫn chấp nhận dạng text pgvector khi đọc bằng native query SELECT *
+ */
+public class PgVectorType implements UserType<float[]> {
+
+    @Override
+    public int getSqlType() {
+        return Types.OTHER;
+    }
+
+    @Override
+    public Class<float[]> returnedClass() {
+        return float[].class;
+    }
+
+    @Override
+    public boolean equals(float[] x, float[] y) {
+        return Arrays.equals(x, y);
+    }
+
+    @Override
+    public int hashCode(float[] x) {
+        return Arrays.hashCode(x);
+    }
+
+    @Override
+    public float[] nullSafeGet(ResultSet rs, int position, SharedSessionContractImplementor session, Object owner)
+        throws SQLException {
+        Object value = rs.getObject(position);
+        return rs.wasNull() ? null : VectorUtils.toFloatArray(value);
+    }
+
+    @Override
+    public void nullSafeSet(PreparedStatement st, float[] value, int index, SharedSessionContractImplementor session)
+        throws SQLException {
+        if (value == null) {
+            st.setNull(index, Types.OTHER);
+        } else {
+            st.setObject(index, value);
+        }
+    }
+
+    @Override
+    public float[] deepCopy(float[] value) {
+        return value != null ? value.clone() : null;
+    }
+
+    @Override
+    public boolean isMutable() {
+        return true;
+    }
+
+    @Override
+    public Serializable disassemble(float[] value) {
+        return deepCopy(value);
+    }
+
+    @Override
+    public float[] assemble(Serializable cached, Object owner) {
+        return deepCopy((float[]) cached);
+    }
+
+    @Override
+    public float[] replace(float[] detached, float[] managed, Object owner) {
+        return deepCopy(detached);
+    }
+}
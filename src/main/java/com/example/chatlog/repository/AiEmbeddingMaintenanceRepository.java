@@ -0,0 +1,135 @@
+package com.example.chatlog.repository;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import javax.sql.DataSource;
+import java.time.OffsetDateTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bảo trì bảng ai_embedding: dọn bản ghi đã soft delete, giữ các partial index (WHERE is_deleted = 0), đo bloat
+ *
+ * Chạy ngoài transaction (autocommit): VACUUM, CREATE/REINDEX ... CONCURRENTLY không chạy được trong transaction
+ */
+@Repository
+public class AiEmbeddingMaintenanceRepository {
+
+    // Tên index → câu tạo (giống sql/embedding.sql), CONCURRENTLY để không khóa ghi trong lúc build
+    public static final String VECTOR_INDEX = "idx_ai_embedding_embedding_active";
+    public static final Map<String, String> PARTIAL_INDEXES = Map.of(
+        VECTOR_INDEX,
+        "CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_ai_embedding_embedding_active ON ai_embedding "
+            + "USING hnsw (embedding vector_cosine_ops) WHERE is_deleted = 0",
+        "idx_ai_embedding_content_active",
+        "CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_ai_embedding_content_active ON ai_embedding "
+            + "USING hash (content) WHERE is_deleted = 0",
+        "idx_ai_embedding_source_file_active",
+        "CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_ai_embedding_source_file_active ON ai_embedding "
+            + "USING btree ((metadata->>'source_file')) WHERE is_deleted = 0",
+        // Đích ON CONFLICT của bulkInsert: thiếu index này thì INSERT ... ON CONFLICT lỗi
+        "uq_ai_embedding_source_file_content_hash_active",
+        "CREATE UNIQUE INDEX CONCURRENTLY IF NOT EXISTS uq_ai_embedding_source_file_content_hash_active ON ai_embedding "
+            + "USING btree ((metadata->>'source_file'), (metadata->>'content_hash')) WHERE is_deleted = 0",
+        "idx_ai_embedding_deleted_updated_at",
+        "CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_ai_embedding_deleted_updated_at ON ai_embedding "
+            + "USING btree (updated_at) WHERE is_deleted = 1"
+    );
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public AiEmbeddingMaintenanceRepository(@Qualifier("secondaryDataSource") DataSource dataSource) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+    }
+
+    // Xóa hẳn tối đa limit bản ghi đã soft delete trước cutoff (mỗi lô là một transaction ngắn)
+    public int purgeSoftDeleted(OffsetDateTime cutoff, int limit) {
+        return jdbcTemplate.update("""
+            DELETE FROM ai_embedding WHERE id IN (
+                SELECT id FROM ai_embedding WHERE is_deleted = 1 AND updated_at < ? LIMIT ?
+            )
+            """, cutoff, limit);
+    }
+
+    // Chuyển tối đa limit bản ghi đã soft delete trước cutoff sang ai_embedding_archive trong một câu
+    // Trả về số bản ghi đã xóa khỏi ai_embedding (không phải số dòng insert: id đã có trong archive bị bỏ qua
+    // nhưng vẫn bị xóa, đếm theo insert thì vòng lặp theo lô dừng sớm)
+    public int archiveSoftDeleted(OffsetDateTime cutoff, int limit) {
+        Integer moved = jdbcTemplate.queryForObject("""
+            WITH moved AS (
+                DELETE FROM ai_embedding WHERE id IN (
+                    SELECT id FROM ai_embedding WHERE is_deleted = 1 AND updated_at < ? LIMIT ?
+                )
+                RETURNING id, content, metadata, embedding, created_at, updated_at
+            ), archived AS (
+                INSERT INTO ai_embedding_archive (id, content, metadata, embedding, created_at, updated_at)
+                SELECT id, content, metadata, embedding, created_at, updated_at FROM moved
+                ON CONFLICT (id) DO NOTHING
+            )
+            SELECT COUNT(*)::int FROM moved
+            """, Integer.class, cutoff, limit);
+        return moved != null ? moved : 0;
+    }
+
+    // Index không hợp lệ (CREATE/REINDEX CONCURRENTLY bị ngắt giữa chừng): vẫn tốn chi phí ghi nhưng planner không dùng
+    public List<String> findInvalidIndexes() {
+        return jdbcTemplate.queryForList("""
+            SELECT c.relname FROM pg_index i
+            JOIN pg_class c ON c.oid = i.indexrelid
+            WHERE i.indrelid = 'ai_embedding'::regclass AND NOT i.indisvalid
+            """, String.class);
+    }
+
+    public void dropIndex(String indexName) {
+        jdbcTemplate.execute("DROP INDEX CONCURRENTLY IF EXISTS " + indexName);
+    }
+
+    public void execute(String ddl) {
+        jdbcTemplate.execute(ddl);
+    }
+
+    public void reindex(String indexName) {
+        jdbcTemplate.execute("REINDEX INDEX CONCURRENTLY " + indexName);
+    }
+
+    public void vacuumAnalyze() {
+        jdbcTemplate.execute("VACUUM (ANALYZE) ai_embedding");
+    }
+
+    // Số liệu bloat: bản ghi chưa xóa / đã soft delete, dead tuple, kích thước bảng và từng index
+    public Map<String, Object> tableStats() {
+        Map<String, Object> stats = new LinkedHashMap<>(jdbcTemplate.queryForMap("""
+            SELECT COUNT(*) FILTER (WHERE is_deleted = 0) AS active_rows,
+                   COUNT(*) FILTER (WHERE is_deleted <> 0) AS soft_deleted_rows,
+                   MIN(updated_at) FILTER (WHERE is_deleted <> 0) AS oldest_soft_deleted_at
+            FROM ai_embedding
+            """));
+        jdbcTemplate.query("""
+            SELECT n_live_tup, n_dead_tup, last_vacuum, last_autovacuum,
+                   pg_relation_size(relid) AS table_bytes, pg_total_relation_size(relid) AS total_bytes
+            FROM pg_stat_user_tables WHERE relid = 'ai_embedding'::regclass
+            """, rs -> {
+            stats.put("live_tuples", rs.getLong("n_live_tup"));
+            stats.put("dead_tuples", rs.getLong("n_dead_tup"));
+            stats.put("last_vacuum", String.valueOf(rs.getObject("last_vacuum")));
+            stats.put("last_autovacuum", String.valueOf(rs.getObject("last_autovacuum")));
+            stats.put("table_bytes", rs.getLong("table_bytes"));
+            stats.put("total_bytes", rs.getLong("total_bytes"));
+        });
+        Map<String, Object> indexes = new LinkedHashMap<>();
+        jdbcTemplate.query("""
+            SELECT indexrelname, pg_relation_size(indexrelid) AS bytes, idx_scan
+            FROM pg_stat_user_indexes WHERE relid = 'ai_embedding'::regclass ORDER BY indexrelname
+            """, rs -> {
+            Map<String, Object> index = new LinkedHashMap<>();
+            index.put("bytes", rs.getLong("bytes"));
+            index.put("scans", rs.getLong("idx_scan"));
+            indexes.put(rs.getString("indexrelname"), index);
+        });
+        stats.put("indexes", indexes);
+        return stats;
+    }
+}
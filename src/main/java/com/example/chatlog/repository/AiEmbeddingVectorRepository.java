@@ -0,0 +1,165 @@
+package com.example.chatlog.repository;
+
+import com.example.chatlog.dto.EmbeddingInsertRow;
+import com.example.chatlog.dto.KnowledgeBaseExample;
+import com.example.chatlog.dto.ScoredEmbedding;
+import com.example.chatlog.utils.VectorUtils;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import javax.sql.DataSource;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+
+/**
+ * Các truy vấn vector trên ai_embedding chạy bằng JDBC thuần
+ *
+ * Vector được bind dưới dạng float[] → PgJDBC gửi real[] binary (~6KB cho 1536 chiều thay vì ~20KB text),
+ * Postgres cast real[] → vector phía server. Dùng chung connection/transaction với secondaryTransactionManager
+ * vì JpaTransactionManager expose connection của EntityManager cho DataSource này
+ */
+@Repository
+public class AiEmbeddingVectorRepository {
+
+    // Projection cho kết quả search: chỉ các trường dựng prompt, tách sẵn từ metadata phía server
+    // Không kéo embedding 1536 chiều, created_at/updated_at và phần còn lại của metadata qua mạng
+    private static final String HIT_COLUMNS = "id, content, metadata->>'question' AS question, "
+        + "metadata->>'scenario' AS scenario, metadata->>'phase' AS phase, metadata->>'query_dsl' AS query_dsl";
+
+    // Chỉ lấy vector khi cần tính độ trùng lặp cho MMR
+    private static final String HIT_VECTOR_COLUMN = ", CAST(embedding AS real[]) AS embedding";
+
+    private static final int BULK_INSERT_CHUNK = 200;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public AiEmbeddingVectorRepository(@Qualifier("secondaryDataSource") DataSource dataSource) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+    }
+
+    // Vector similarity search (cosine distance), trả kèm similarity = 1 - distance
+    // ORDER BY theo alias vẫn là biểu thức embedding <=> ? nên vẫn dùng được vector index, vector chỉ bind một lần
+    public List<ScoredEmbedding> findSimilarEmbeddings(float[] queryEmbedding, int limit, boolean withVectors) {
+        String sql = "SELECT " + HIT_COLUMNS + (withVectors ? HIT_VECTOR_COLUMN : "")
+            + ", embedding <=> CAST(? AS vector) AS distance "
+            + "FROM ai_embedding WHERE is_deleted = 0 ORDER BY distance LIMIT ?";
+        return jdbcTemplate.query(sql, ps -> {
+            ps.setObject(1, queryEmbedding);
+            ps.setInt(2, limit);
+        }, (rs, rowNum) -> mapHit(rs, withVectors));
+    }
+
+    // Batch vector search: N query vector trong một câu SQL (VALUES + LATERAL), mỗi query vẫn dùng vector index
+    // Kết quả trả về theo thứ tự đầu vào, mỗi phần tử là top-K của query tương ứng
+    public List<List<ScoredEmbedding>> findSimilarEmbeddingsBatch(List<float[]> queryEmbeddings, int limit,
+                                                                  boolean withVectors) {
+        if (queryEmbeddings.isEmpty()) {
+            return List.of();
+        }
+        String values = String.join(", ",
+            Collections.nCopies(queryEmbeddings.size(), "(?::int, CAST(? AS vector))"));
+        String sql = "SELECT q.ord, hit.* FROM (VALUES " + values + ") AS q(ord, v) "
+            + "CROSS JOIN LATERAL (SELECT " + HIT_COLUMNS + (withVectors ? HIT_VECTOR_COLUMN : "")
+            + ", embedding <=> q.v AS distance "
+            + "FROM ai_embedding WHERE is_deleted = 0 ORDER BY distance LIMIT ?) hit "
+            + "ORDER BY q.ord, hit.distance";
+
+        List<List<ScoredEmbedding>> results = new ArrayList<>(queryEmbeddings.size());
+        for (int i = 0; i < queryEmbeddings.size(); i++) {
+            results.add(new ArrayList<>(limit));
+        }
+        jdbcTemplate.query(sql, ps -> {
+            int param = 1;
+            for (int i = 0; i < queryEmbeddings.size(); i++) {
+                ps.setInt(param++, i);
+                ps.setObject(param++, queryEmbeddings.get(i));
+            }
+            ps.setInt(param, limit);
+        }, rs -> {
+            results.get(rs.getInt("ord")).add(mapHit(rs, withVectors));
+        });
+        return results;
+    }
+
+    // Bulk insert nhiều dòng trong một câu INSERT ... VALUES (...), (...) ON CONFLICT trên unique index (source_file, content_hash)
+    // (uq_ai_embedding_source_file_content_hash_active, xem sql/embedding.sql), trả về id các dòng thực sự được insert
+    // Chia thành từng câu BULK_INSERT_CHUNK dòng để số tham số bind và kích thước statement có giới hạn
+    public List<UUID> bulkInsert(List<EmbeddingInsertRow> rows, List<String> metadataJson, OffsetDateTime now) {
+        List<UUID> inserted = new ArrayList<>(rows.size());
+        for (int from = 0; from < rows.size(); from += BULK_INSERT_CHUNK) {
+            int to = Math.min(rows.size(), from + BULK_INSERT_CHUNK);
+            List<EmbeddingInsertRow> chunk = rows.subList(from, to);
+            List<String> chunkMetadata = metadataJson.subList(from, to);
+            String sql = "INSERT INTO ai_embedding (id, content, embedding, metadata, created_at, updated_at, is_deleted) VALUES "
+                + String.join(", ", Collections.nCopies(chunk.size(), "(?, ?, CAST(? AS vector), CAST(? AS jsonb), ?, ?, 0)"))
+                + " ON CONFLICT ((metadata->>'source_file'), (metadata->>'content_hash')) WHERE is_deleted = 0 DO NOTHING RETURNING id";
+            inserted.addAll(jdbcTemplate.query(sql, ps -> {
+                int param = 1;
+                for (int i = 0; i < chunk.size(); i++) {
+                    EmbeddingInsertRow row = chunk.get(i);
+                    ps.setObject(param++, row.id());
+                    ps.setString(param++, row.content());
+                    ps.setObject(param++, row.embedding());
+                    ps.setString(param++, chunkMetadata.get(i));
+                    ps.setObject(param++, now);
+                    ps.setObject(param++, now);
+                }
+            }, (rs, rowNum) -> rs.getObject("id", UUID.class)));
+        }
+        return inserted;
+    }
+
+    // Đọc tuần tự mọi bản ghi chưa xóa kèm vector đã lưu (không embed lại)
+    // Trong transaction (autocommit tắt) PgJDBC dùng cursor phía server, mỗi lần chỉ kéo fetchSize dòng về
+    public void streamActiveEmbeddings(int fetchSize, BiConsumer<KnowledgeBaseExample, float[]> consumer) {
+        String sql = "SELECT " + HIT_COLUMNS + HIT_VECTOR_COLUMN + " FROM ai_embedding WHERE is_deleted = 0";
+        jdbcTemplate.query(con -> {
+            PreparedStatement ps = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            ps.setFetchSize(fetchSize);
+            return ps;
+        }, rs -> {
+            consumer.accept(mapExample(rs), VectorUtils.toFloatArray(rs.getObject("embedding")));
+        });
+    }
+
+    // Vector của các bản ghi theo id (một câu SQL), id không còn thì không có trong kết quả
+    public Map<UUID, float[]> findVectorsByIds(Collection<UUID> ids) {
+        Map<UUID, float[]> vectors = new HashMap<>();
+        if (ids.isEmpty()) {
+            return vectors;
+        }
+        jdbcTemplate.query("SELECT id" + HIT_VECTOR_COLUMN + " FROM ai_embedding WHERE id = ANY(?)",
+            ps -> ps.setArray(1, ps.getConnection().createArrayOf("uuid", ids.toArray())),
+            rs -> {
+                vectors.put(rs.getObject("id", UUID.class), VectorUtils.toFloatArray(rs.getObject("embedding")));
+            });
+        return vectors;
+    }
+
+    private ScoredEmbedding mapHit(ResultSet rs, boolean withVectors) throws SQLException {
+        float[] vector = withVectors ? VectorUtils.toFloatArray(rs.getObject("embedding")) : null;
+        return ScoredEmbedding.of(mapExample(rs), 1.0 - rs.getDouble("distance"), vector);
+    }
+
+    private KnowledgeBaseExample mapExample(ResultSet rs) throws SQLException {
+        return new KnowledgeBaseExample(
+            rs.getObject("id", UUID.class),
+            rs.getString("question"),
+            rs.getString("scenario"),
+            rs.getString("phase"),
+            rs.getString("query_dsl"),
+            rs.getString("content")
+        );
+    }
+}
@@ -1,21 +1,38 @@
 package com.example.chatlog.service;
 
+import com.example.chatlog.dto.BulkInsertResult;
+import com.example.chatlog.dto.EmbeddingInsertRow;
+import com.example.chatlog.dto.KnowledgeBaseExample;
+import com.example.chatlog.dto.KnowledgeBaseManifestEntry;
+import com.example.chatlog.dto.ScoredEmbedding;
 import com.example.chatlog.entity.ai.AiEmbedding;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.function.BiConsumer;
 
 public interface AiEmbeddingService {
 
-    // Lưu embedding vào database
-    AiEmbedding saveEmbedding(String content, String embedding, Map<String, Object> metadata);
+    // Ghi embedding vào database: chỉ qua bulk insert (multi-row INSERT ... ON CONFLICT theo source_file + content_hash), bỏ qua dòng đã có bản ghi chưa xóa cùng file và hash
+    BulkInsertResult bulkInsert(List<EmbeddingInsertRow> rows);
 
-    // Tìm embeddings tương tự
-    List<AiEmbedding> findSimilarEmbeddings(String queryEmbedding, int limit);
+    // Tìm embeddings tương tự (kèm cosine similarity, sắp xếp giảm dần)
+    // withVectors = false: chỉ lấy các trường dựng prompt, không kéo vector về
+    List<ScoredEmbedding> findSimilarEmbeddings(float[] queryEmbedding, int limit, boolean withVectors);
 
-    // Kiểm tra xem embedding có tồn tại không
-    boolean existsByContent(String content);
+    // Tìm embeddings tương tự cho nhiều query trong một câu SQL, kết quả theo thứ tự đầu vào
+    List<List<ScoredEmbedding>> findSimilarEmbeddingsBatch(List<float[]> queryEmbeddings, int limit, boolean withVectors);
+
+    // Vector đã lưu của các bản ghi theo id (dùng khi MMR cần vector của ứng viên tìm bằng withVectors = false)
+    Map<UUID, float[]> findVectorsByIds(Collection<UUID> ids);
+
+    // Lấy tất cả embeddings chưa xóa (dùng để build index trong bộ nhớ)
+    List<AiEmbedding> findAllNotDeleted();
+
+    // Duyệt tuần tự mọi embedding chưa xóa kèm vector đã lưu, không nạp hết vào bộ nhớ (hydrate vector store)
+    void forEachActiveEmbedding(BiConsumer<KnowledgeBaseExample, float[]> consumer);
 
     // Đếm tất cả embeddings chưa xóa
     long countAllNotDeleted();
@@ -23,4 +40,14 @@ public interface AiEmbeddingService {
     // Đếm số embeddings theo source file
     long countBySourceFile(String sourceFile);
 
+    // Soft delete embedding (is_deleted = 1)
+    boolean softDeleteById(UUID id);
+
+    // Soft delete nhiều embedding của cùng source file, trả về số bản ghi đã xóa
+    int softDeleteByIds(Collection<UUID> ids, String sourceFile);
+
+    // Manifest (id + content_hash) các embedding chưa xóa của source file
+    // Bản ghi cũ chưa có content_hash được tính từ metadata và ghi bổ sung vào DB
+    List<KnowledgeBaseManifestEntry> loadManifest(String sourceFile);
+
 }
@@ -2,6 +2,9 @@ package com.example.chatlog.service;
 
 
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.CompletableFuture;
 
 @Service
 public interface LogApiService {
@@ -9,4 +12,24 @@ public interface LogApiService {
 
 
     String getAllField(String index);
+
+    // Bản non-blocking: không giữ thread trong lúc chờ Elasticsearch
+    // Hết timeout hoặc hủy subscription (dispose / cancel future) thì request Netty bên dưới cũng bị hủy
+    Mono<String> searchAsync(String index, String body);
+
+    Mono<String> getAllFieldAsync(String index);
+
+    // Response thô của _field_caps?fields=* (tên field, kiểu, danh sách index) cho FieldCatalogService
+    Mono<String> getFieldCapsAsync(String index);
+
+    // Response thô của _resolve/index: index, alias và backing index của data stream khớp pattern (rất nhẹ)
+    Mono<String> resolveIndexAsync(String index);
+
+    default CompletableFuture<String> searchFuture(String index, String body) {
+        return searchAsync(index, body).toFuture();
+    }
+
+    default CompletableFuture<String> getAllFieldFuture(String index) {
+        return getAllFieldAsync(index).toFuture();
+    }
 }
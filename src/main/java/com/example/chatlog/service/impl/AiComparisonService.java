@@ -15,13 +15,18 @@ import org.springframework.ai.chat.messages.UserMessage;
 import org.springframework.ai.chat.prompt.ChatOptions;
 import org.springframework.ai.chat.prompt.Prompt;
 import org.springframework.ai.retry.NonTransientAiException;
+import jakarta.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Service xử lý chế độ so sánh giữa OpenAI và OpenRouter với PARALLEL PROCESSING
@@ -38,11 +43,27 @@ public class AiComparisonService {
     
     private final ChatClient chatClient;
     private final ObjectMapper objectMapper;
+
+    // Thread riêng cho hai nhánh OpenAI / OpenRouter: lời gọi ChatClient và tool searchElasticsearch đều chặn thread
+    // (tool callback của Spring AI là đồng bộ), chạy trên common ForkJoinPool sẽ chiếm hết pool dùng chung của JVM
+    private final ExecutorService comparisonExecutor;
     
     @Autowired
-    public AiComparisonService(ChatClient.Builder builder) {
+    public AiComparisonService(ChatClient.Builder builder,
+                               @Value("${comparison.max-concurrent-calls:8}") int maxConcurrentCalls) {
         this.objectMapper = new ObjectMapper();
         this.chatClient = builder.build();
+        AtomicInteger counter = new AtomicInteger();
+        this.comparisonExecutor = Executors.newFixedThreadPool(Math.max(2, maxConcurrentCalls), runnable -> {
+            Thread thread = new Thread(runnable, "ai-comparison-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        comparisonExecutor.shutdownNow();
     }
     
     /**
@@ -505,12 +526,12 @@ public class AiComparisonService {
             
             // CompletableFuture cho OpenAI với tool enabled
             CompletableFuture<Map<String, Object>> openaiFuture = CompletableFuture.supplyAsync(() -> 
-                processOpenAI(sessionId, chatRequest, toolBasedPrompt)
+                processOpenAI(sessionId, chatRequest, toolBasedPrompt), comparisonExecutor
             );
             
             // CompletableFuture cho OpenRouter với tool enabled
             CompletableFuture<Map<String, Object>> openrouterFuture = CompletableFuture.supplyAsync(() -> 
-                processOpenRouter(sessionId, chatRequest, toolBasedPrompt)
+                processOpenRouter(sessionId, chatRequest, toolBasedPrompt), comparisonExecutor
             );
             
             // Đợi cả hai hoàn thành
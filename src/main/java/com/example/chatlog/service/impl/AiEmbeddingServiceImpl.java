@@ -1,18 +1,31 @@
 package com.example.chatlog.service.impl;
 
+import com.example.chatlog.dto.BulkInsertResult;
+import com.example.chatlog.dto.EmbeddingInsertRow;
+import com.example.chatlog.dto.KnowledgeBaseExample;
+import com.example.chatlog.dto.KnowledgeBaseManifestEntry;
+import com.example.chatlog.dto.ScoredEmbedding;
 import com.example.chatlog.entity.ai.AiEmbedding;
 import com.example.chatlog.repository.AiEmbeddingRepository;
+import com.example.chatlog.repository.AiEmbeddingVectorRepository;
 import com.example.chatlog.service.AiEmbeddingService;
+import com.example.chatlog.utils.KnowledgeBaseHash;
 import lombok.RequiredArgsConstructor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.function.BiConsumer;
 
 @Service
 @RequiredArgsConstructor
@@ -20,55 +33,34 @@ import java.util.UUID;
 public class AiEmbeddingServiceImpl implements AiEmbeddingService {
 
     private static final Logger VECTOR_SEARCH_LOGGER = LoggerFactory.getLogger("VECTOR_SEARCH_DEBUG");
+    // Số dòng mỗi lần kéo về khi duyệt toàn bộ bảng
+    private static final int STREAM_FETCH_SIZE = 500;
     private final AiEmbeddingRepository aiEmbeddingRepository;
+    private final AiEmbeddingVectorRepository aiEmbeddingVectorRepository;
+    private final EmbeddingCatalogService embeddingCatalogService;
 
     @Override
-    public AiEmbedding saveEmbedding(String content, String embedding, Map<String, Object> metadata) {
-        // Check duplicate trước để tránh duplicate insertion (double-check pattern)
-        Optional<AiEmbedding> existing = aiEmbeddingRepository.findByContentAndNotDeleted(content);
-        if (existing.isPresent()) {
-            // Nếu đã tồn tại, return existing record thay vì tạo mới
-            return existing.get();
+    public BulkInsertResult bulkInsert(List<EmbeddingInsertRow> rows) {
+        if (rows.isEmpty()) {
+            return new BulkInsertResult(List.of(), 0);
         }
-        
-        // Generate ID and timestamps manually (since @PrePersist won't be triggered)
-        java.util.UUID id = java.util.UUID.randomUUID();
-        java.time.OffsetDateTime now = java.time.OffsetDateTime.now();
-        
-        // Convert metadata Map to JSON String
-        String metadataJson = convertMapToJson(metadata);
-        
-        // Use custom native query with explicit vector cast
-        // Query sẽ tự check duplicate bằng WHERE NOT EXISTS để đảm bảo an toàn
-        int rowsAffected = aiEmbeddingRepository.saveWithVectorCast(
-            id,
-            content,
-            embedding,
-            metadataJson,
-            now,  // createdAt
-            now,  // updatedAt
-            0     // isDeleted
-        );
-        
-        // Nếu insert thành công (rowsAffected > 0), return new entity
-        if (rowsAffected > 0) {
-            return AiEmbedding.builder()
-                    .id(id)
-                    .content(content)
-                    .embedding(embedding)
-                    .metadata(metadata)
-                    .createdAt(now)
-                    .updatedAt(now)
-                    .isDeleted(0)
-                    .build();
-        } else {
-            // Nếu insert thất bại (duplicate), query lại để return existing record
-            // Điều này có thể xảy ra nếu có race condition giữa check và insert
-            return aiEmbeddingRepository.findByContentAndNotDeleted(content)
-                    .orElseThrow(() -> new RuntimeException("Failed to save embedding and cannot find existing record"));
+        List<String> metadataJson = new ArrayList<>(rows.size());
+        for (EmbeddingInsertRow row : rows) {
+            metadataJson.add(convertMapToJson(row.metadata()));
         }
+        Set<UUID> insertedIds = new HashSet<>(
+            aiEmbeddingVectorRepository.bulkInsert(rows, metadataJson, java.time.OffsetDateTime.now()));
+
+        List<EmbeddingInsertRow> inserted = new ArrayList<>(insertedIds.size());
+        for (EmbeddingInsertRow row : rows) {
+            if (insertedIds.contains(row.id())) {
+                inserted.add(row);
+                embeddingCatalogService.recordInsert(row.metadata() != null ? (String) row.metadata().get("source_file") : null);
+            }
+        }
+        return new BulkInsertResult(inserted, rows.size() - inserted.size());
     }
-    
+
     private String convertMapToJson(Map<String, Object> map) {
         if (map == null) return "{}";
         try {
@@ -81,11 +73,13 @@ public class AiEmbeddingServiceImpl implements AiEmbeddingService {
     }
 
     @Override
-    public List<AiEmbedding> findSimilarEmbeddings(String queryEmbedding, int limit) {
+    public List<ScoredEmbedding> findSimilarEmbeddings(float[] queryEmbedding, int limit, boolean withVectors) {
         // Log the SQL query
         String sqlQuery = String.format(
-            "SELECT * FROM ai_embedding WHERE is_deleted = 0 ORDER BY embedding <=> CAST('%s' AS vector) LIMIT %d",
-            queryEmbedding.length() > 100 ? queryEmbedding.substring(0, 100) + "..." : queryEmbedding,
+            "SELECT id, content, metadata->>'question', metadata->>'scenario', metadata->>'phase', metadata->>'query_dsl'%s, "
+                + "embedding <=> CAST(? /* real[%d], binary */ AS vector) AS distance FROM ai_embedding WHERE is_deleted = 0 ORDER BY distance LIMIT %d",
+            withVectors ? ", CAST(embedding AS real[])" : "",
+            queryEmbedding.length,
             limit
         );
         
@@ -94,10 +88,10 @@ public class AiEmbeddingServiceImpl implements AiEmbeddingService {
         VECTOR_SEARCH_LOGGER.info("=".repeat(120));
         VECTOR_SEARCH_LOGGER.info("📊 SQL Query:");
         VECTOR_SEARCH_LOGGER.info("   {}", sqlQuery);
-        VECTOR_SEARCH_LOGGER.info("   Embedding dimensions: {} characters", queryEmbedding.length());
+        VECTOR_SEARCH_LOGGER.info("   Embedding dimensions: {}", queryEmbedding.length);
         VECTOR_SEARCH_LOGGER.info("   Requested limit: {}", limit);
         
-        List<AiEmbedding> results = aiEmbeddingRepository.findSimilarEmbeddings(queryEmbedding, limit);
+        List<ScoredEmbedding> results = aiEmbeddingVectorRepository.findSimilarEmbeddings(queryEmbedding, limit, withVectors);
         
         VECTOR_SEARCH_LOGGER.info("\n✅ Results returned: {}", results.size());
         
@@ -107,25 +101,18 @@ public class AiEmbeddingServiceImpl implements AiEmbeddingService {
             VECTOR_SEARCH_LOGGER.info("-".repeat(120));
             
             for (int i = 0; i < results.size(); i++) {
-                AiEmbedding emb = results.get(i);
-                String question = null;
-                String sourceFile = null;
-                
-                if (emb.getMetadata() != null) {
-                    Object q = emb.getMetadata().get("question");
-                    question = q != null ? q.toString() : null;
-                    Object sf = emb.getMetadata().get("source_file");
-                    sourceFile = sf != null ? sf.toString() : null;
-                }
+                KnowledgeBaseExample example = results.get(i).example();
+                String question = example.question();
                 
                 String questionDisplay = question != null ? 
                     (question.length() > 80 ? question.substring(0, 80) + "..." : question) : 
                     "N/A";
                 
-                VECTOR_SEARCH_LOGGER.info("#{} | {} | Source: {}", 
+                VECTOR_SEARCH_LOGGER.info("#{} | {} | Similarity: {} | Scenario: {}", 
                     i + 1, 
                     questionDisplay,
-                    sourceFile != null ? sourceFile : "N/A"
+                    String.format("%.4f", results.get(i).similarity()),
+                    example.scenario() != null ? example.scenario() : "N/A"
                 );
             }
             
@@ -143,17 +130,101 @@ public class AiEmbeddingServiceImpl implements AiEmbeddingService {
     }
 
     @Override
-    public boolean existsByContent(String content) {
-        return aiEmbeddingRepository.findByContentAndNotDeleted(content).isPresent();
+    public List<List<ScoredEmbedding>> findSimilarEmbeddingsBatch(List<float[]> queryEmbeddings, int limit,
+                                                                  boolean withVectors) {
+        VECTOR_SEARCH_LOGGER.info("🔍 BATCH VECTOR SEARCH: {} queries x top {} (VALUES + LATERAL, 1 round trip)",
+            queryEmbeddings.size(), limit);
+        long start = System.currentTimeMillis();
+        List<List<ScoredEmbedding>> results = aiEmbeddingVectorRepository.findSimilarEmbeddingsBatch(queryEmbeddings, limit, withVectors);
+        VECTOR_SEARCH_LOGGER.info("✅ Batch vector search done in {}ms", System.currentTimeMillis() - start);
+        return results;
+    }
+
+    @Override
+    public Map<UUID, float[]> findVectorsByIds(Collection<UUID> ids) {
+        return aiEmbeddingVectorRepository.findVectorsByIds(ids);
+    }
+
+    @Override
+    public List<AiEmbedding> findAllNotDeleted() {
+        return aiEmbeddingRepository.findAllNotDeleted();
+    }
+
+    @Override
+    // Cursor phía server chỉ dùng được khi autocommit tắt → cần transaction
+    @Transactional(value = "secondaryTransactionManager", readOnly = true)
+    public void forEachActiveEmbedding(BiConsumer<KnowledgeBaseExample, float[]> consumer) {
+        aiEmbeddingVectorRepository.streamActiveEmbeddings(STREAM_FETCH_SIZE, consumer);
     }
 
     @Override
+    // Đọc từ bộ nhớ, nằm trên hot path của tìm kiếm → không mở transaction / mượn connection
+    @Transactional(value = "secondaryTransactionManager", propagation = Propagation.NOT_SUPPORTED)
     public long countAllNotDeleted() {
-        return aiEmbeddingRepository.findAllNotDeleted().size();
+        // Đọc từ catalog trong bộ nhớ, không load toàn bộ bảng
+        return embeddingCatalogService.total();
     }
 
     @Override
+    @Transactional(value = "secondaryTransactionManager", propagation = Propagation.NOT_SUPPORTED)
     public long countBySourceFile(String sourceFile) {
-        return aiEmbeddingRepository.countBySourceFile(sourceFile);
+        return embeddingCatalogService.countBySourceFile(sourceFile);
+    }
+
+    @Override
+    public boolean softDeleteById(UUID id) {
+        Optional<String> sourceFile = aiEmbeddingRepository.findSourceFileById(id);
+        int rowsAffected = aiEmbeddingRepository.softDeleteById(id);
+        if (rowsAffected > 0) {
+            embeddingCatalogService.recordSoftDelete(sourceFile.orElse(null));
+        }
+        return rowsAffected > 0;
+    }
+
+    @Override
+    public int softDeleteByIds(Collection<UUID> ids, String sourceFile) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        int rowsAffected = aiEmbeddingRepository.softDeleteByIds(ids);
+        for (int i = 0; i < rowsAffected; i++) {
+            embeddingCatalogService.recordSoftDelete(sourceFile);
+        }
+        return rowsAffected;
+    }
+
+    @Override
+    public List<KnowledgeBaseManifestEntry> loadManifest(String sourceFile) {
+        List<Object[]> rows = aiEmbeddingRepository.findManifestRows(sourceFile);
+        List<KnowledgeBaseManifestEntry> manifest = new ArrayList<>(rows.size());
+        int backfilled = 0;
+        for (Object[] row : rows) {
+            UUID id = row[0] instanceof UUID uuid ? uuid : UUID.fromString(row[0].toString());
+            String question = (String) row[1];
+            String contentHash = (String) row[2];
+            if (contentHash == null) {
+                // Bản ghi tạo trước khi có content_hash: tính lại từ question + query_dsl + keywords đã lưu
+                contentHash = KnowledgeBaseHash.of(question, (String) row[3], readKeywords((String) row[4]));
+                aiEmbeddingRepository.updateContentHash(id, contentHash);
+                backfilled++;
+            }
+            manifest.add(new KnowledgeBaseManifestEntry(id, question, contentHash));
+        }
+        if (backfilled > 0) {
+            System.out.println("   🔖 Đã ghi bổ sung content_hash cho " + backfilled + " bản ghi cũ của " + sourceFile);
+        }
+        return manifest;
+    }
+
+    private List<String> readKeywords(String json) {
+        if (json == null || json.isEmpty() || "null".equals(json)) {
+            return null;
+        }
+        try {
+            return new com.fasterxml.jackson.databind.ObjectMapper().readValue(json,
+                new com.fasterxml.jackson.core.type.TypeReference<List<String>>() {});
+        } catch (Exception e) {
+            return null;
+        }
     }
 }
@@ -5,6 +5,7 @@ import com.example.chatlog.dto.DataExample;
 import com.example.chatlog.dto.RequestBody;
 import com.example.chatlog.service.LogApiService;
 import com.example.chatlog.utils.SchemaHint;
+import com.example.chatlog.utils.SearchResponseCompactor;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -19,6 +20,8 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -38,9 +41,12 @@ public class AiQueryService {
     @Autowired
     private LogApiService logApiService;
     
-    // ✅ Inject KnowledgeBaseIndexingService thay vì load lại file
+    // ✅ Thư viện ví dụ dùng chung, parse file một lần
     @Autowired
-    private KnowledgeBaseIndexingService knowledgeBaseIndexingService;
+    private ExampleLibraryService exampleLibraryService;
+
+    @Autowired
+    private FieldCatalogService fieldCatalogService;
     
     private final ChatClient chatClient;
     private final ObjectMapper objectMapper;
@@ -52,10 +58,10 @@ public class AiQueryService {
     }
 
     /**
-     * Get the example library from KnowledgeBaseIndexingService
+     * Get the example library from ExampleLibraryService (đã parse sẵn, không đọc lại file)
      */
     public List<DataExample> getExampleLibrary() {
-        return knowledgeBaseIndexingService.getExampleLibrary();
+        return exampleLibraryService.getExamples();
     }
     
 
@@ -96,6 +102,17 @@ public class AiQueryService {
      * Thực hiện tìm kiếm Elasticsearch với retry logic
      */
     public String[] getLogData(RequestBody requestBody, ChatRequest chatRequest) {
+        return getLogDataAsync(requestBody, chatRequest).block();
+    }
+
+    /**
+     * Bản non-blocking của getLogData: không giữ thread trong lúc chờ Elasticsearch,
+     * chỉ bước gọi AI sửa query (blocking) chạy trên boundedElastic.
+     * Hủy subscription thì request Elasticsearch đang chạy cũng bị hủy
+     *
+     * @return [nội dung trả về hoặc thông báo lỗi, query đã thực thi]
+     */
+    public Mono<String[]> getLogDataAsync(RequestBody requestBody, ChatRequest chatRequest) {
         String query = requestBody.getBody();
 
         // First try to fix common query structure issues
@@ -109,239 +126,288 @@ public class AiQueryService {
         String validationError = validateQuerySyntax(query);
         if (validationError != null) {
             System.out.println("[AiQueryService] Query validation failed: " + validationError);
-            return new String[]{
+            return Mono.just(new String[]{
                 "❌ **Query Validation Error**\n\n" +
                     "Query có cú pháp không hợp lệ trước khi gửi đến Elasticsearch.\n\n" +
                     "**Lỗi validation:** " + validationError + "\n\n" +
                     "💡 **Gợi ý:** Vui lòng thử câu hỏi khác hoặc kiểm tra lại cấu trúc query.",
                 query
+            });
+        }
+
+        String finalQuery = query;
+        System.out.println("[AiQueryService] Sending query to Elasticsearch: " + finalQuery);
+        return logApiService.searchAsync("logs-*", finalQuery)
+            .map(content -> classifyResponse(content, finalQuery))
+            .switchIfEmpty(Mono.fromSupplier(() -> classifyResponse(null, finalQuery)))
+            .onErrorResume(e -> handleSearchError(e, requestBody, chatRequest, finalQuery));
+    }
+
+    /**
+     * Phân loại response của Elasticsearch: rỗng, lỗi, 0 kết quả hoặc có dữ liệu
+     */
+    private String[] classifyResponse(String content, String query) {
+        // System.out.println("[AiQueryService] Elasticsearch response received successfully");
+
+        // 🔍 DEBUG: Kiểm tra response có phải empty hay error không
+        if (content == null || content.trim().isEmpty()) {
+            System.out.println("[AiQueryService] ⚠️ WARNING: Elasticsearch returned EMPTY response!");
+            return new String[]{
+                "⚠️ Elasticsearch trả về response rỗng (empty)\n\nKiểm tra lại query hoặc dữ liệu trong Elasticsearch.",
+                query
             };
         }
 
-        try {
-            System.out.println("[AiQueryService] Sending query to Elasticsearch: " + query);
-            String content = logApiService.search("logs-*", query);
-            // System.out.println("[AiQueryService] Elasticsearch response received successfully");
-            
-            // 🔍 DEBUG: Kiểm tra response có phải empty hay error không
-            if (content == null || content.trim().isEmpty()) {
-                System.out.println("[AiQueryService] ⚠️ WARNING: Elasticsearch returned EMPTY response!");
-                return new String[]{
-                    "⚠️ Elasticsearch trả về response rỗng (empty)\n\nKiểm tra lại query hoặc dữ liệu trong Elasticsearch.",
-                    query
-                };
-            }
-            
-            // Kiểm tra xem response có chứa error không
-            if (content.contains("\"error\"") || content.contains("error_type")) {
-                System.out.println("[AiQueryService] ⚠️ WARNING: Elasticsearch returned ERROR in response!");
-                System.out.println("[AiQueryService] Response: " + content.substring(0, Math.min(200, content.length())));
-                return new String[]{
-                    "❌ Elasticsearch trả về lỗi:\n\n" + content,
-                    query
-                };
-            }
-            
-            // ✅ Kiểm tra xem có hits hoặc aggregations không
-            // CHỈ check hits empty NẾU KHÔNG CÓ aggregations (vì size:0 query sẽ có aggs thay vì hits)
-            boolean hasAggregations = content.contains("\"aggregations\"") || content.contains("\"aggs\"");
-            boolean hitsEmpty = content.contains("\"hits\":[]") || content.contains("\"hits\": []");
-
-            // Log trạng thái để debug
-            System.out.println("[AiQueryService] hasAggregations=" + hasAggregations + ", hitsEmpty=" + hitsEmpty);
-
-            if (hitsEmpty && !hasAggregations) {
-                System.out.println("[AiQueryService] ℹ️ INFO: Elasticsearch returned 0 results (no hits and no aggregations)");
-                return new String[]{
-                    "ℹ️ Không tìm thấy kết quả (0 hits) từ Elasticsearch.",
-                    query
-                };
-            }
+        // Đọc hình dạng response bằng streaming parser (chỉ xét key ở cấp gốc, không quét chuỗi "error" trong dữ liệu log)
+        SearchResponseCompactor.Shape shape = SearchResponseCompactor.shape(content);
 
-            
-            System.out.println("[AiQueryService] ✅ Valid response received with data");
-            return new String[]{content, query};
+        // Kiểm tra xem response có chứa error không
+        if (shape.error()) {
+            System.out.println("[AiQueryService] ⚠️ WARNING: Elasticsearch returned ERROR in response!");
+            System.out.println("[AiQueryService] Response: " + content.substring(0, Math.min(200, content.length())));
+            return new String[]{
+                "❌ Elasticsearch trả về lỗi:\n\n" + content,
+                query
+            };
+        }
 
-        } catch (Exception e) {
-            System.out.println("[AiQueryService] ERROR: Log API returned an error! " + e.getMessage());
-
-            // Parse error details từ Elasticsearch
-            String errorDetails = extractElasticsearchError(e.getMessage());
-            System.out.println("[AiQueryService] Parsed error details: " + errorDetails);
-
-            // Nếu là lỗi 400 Bad Request, thử sửa query bằng AI và retry một lần
-            if (e.getMessage().contains("400") || e.getMessage().contains("Bad Request") ||
-                e.getMessage().contains("parsing_exception") || e.getMessage().contains("illegal_argument_exception")) {
-
-                System.out.println("[AiQueryService] 🔄 Đang thử sửa query với AI và retry...");
-
-                try {
-                    // Lấy field mapping và tạo comparison prompt với error details
-                    String allFields = logApiService.getAllField("logs-*");
-                    String prevQuery = requestBody.getBody();
-                    String userMess = chatRequest.message();
-
-                     // Cải thiện prompt với error details cụ thể
-                     String systemPrompt =
-                         com.example.chatlog.utils.QueryPromptTemplate.getComparisonPrompt(
-                             allFields, prevQuery, userMess, generateDateContext(LocalDateTime.now())
-                         )
-                         + "\n\nROLE: You are an expert Elasticsearch DSL fixer.\n"
-                         + "Context:\n"
-                         + "- allFields: the complete list of valid field names (with types if available). Use only these.\n"
-                         + "- prevQuery: the failing query to fix without changing the user's intent.\n"
-                         + "- userMess: user's intent. Preserve semantics.\n"
-                         + "- dateContext: current time context if needed.\n\n"
-                         + "Task:\n"
-                         + "- Fix the specific issue in errorDetails.\n"
-                         + "- Keep the user's intent unchanged.\n"
-                         + "- Use only fields present in allFields; replace or remove invalid fields appropriately.\n\n"
-                         + "Output requirements:\n"
-                         + "- Return ONLY a single valid Elasticsearch JSON query. No explanations, no extra text.\n"
-                         + "- Ensure valid JSON syntax.\n\n"
-                         + "Best practices and constraints:\n"
-                         + "1) Do NOT place \"aggs\" inside \"query\". Use proper root-level aggs (or nested aggs correctly when needed).\n"
-                         + "2) Validate bool structure: must/should/filter/must_not used correctly.\n"
-                         + "3) Use operators matching field types (term/terms vs match; range for numeric/date, keyword vs text).\n"
-                         + "4) Ensure brackets, quotes, and commas are properly balanced.\n"
-                         + "5) If date filters are present, honor date formats and time zones. Use dateContext as needed.\n"
-                         + "6) Preserve size/sort/from if valid; otherwise fix or remove with minimal change.\n"
-                         + "7) Mentally verify the query passes syntax and mapping checks before returning.\n";
-
-                     String userPrompt =
-                         "URGENT: Fix this Elasticsearch query and ensure correct syntax.\n\n"
-                         + "errorDetails: " + errorDetails + "\n"
-                         + "userMess: " + userMess + "\n"
-                         + "prevQuery: " + prevQuery + "\n\n"
-                         + "Return only the corrected JSON query.";
-
-                     Prompt comparePrompt = new Prompt(
-                         new SystemMessage(systemPrompt),
-                         new UserMessage(userPrompt)
-                     );
-
-
-                    ChatOptions retryChatOptions = ChatOptions.builder()
-                        .temperature(0.3D)
-                        .build();
-
-                    // Gọi AI để tạo query mới với isolate memory
-                    String retryConversationId = "retry_" + System.currentTimeMillis();
-                    String newQuery;
-
-                    try {
-                        // First try to get as RequestBody (normal flow)
-                        RequestBody newRequestBody = chatClient.prompt(comparePrompt)
-                            .options(retryChatOptions)
-                            .advisors(advisorSpec -> advisorSpec.param(
-                                ChatMemory.CONVERSATION_ID, retryConversationId
-                            ))
-                            .call()
-                            .entity(new ParameterizedTypeReference<>() {});
-
-                        // Đảm bảo query luôn là 1
-                        if (newRequestBody.getQuery() != 1) {
-                            newRequestBody.setQuery(1);
-                        }
-                        newQuery = newRequestBody.getBody();
-                    } catch (Exception parseException) {
-                        System.out.println("[AiQueryService] Failed to parse as RequestBody, trying raw JSON: " + parseException.getMessage());
-
-                        // If RequestBody parsing fails, try to get raw JSON response
-                        String rawResponse = chatClient.prompt(comparePrompt)
-                            .options(retryChatOptions)
-                            .advisors(advisorSpec -> advisorSpec.param(
-                                ChatMemory.CONVERSATION_ID, retryConversationId
-                            ))
-                            .call()
-                            .content();
-
-                        // Clean and validate the raw JSON response
-                        newQuery = rawResponse.trim();
-
-                        // Remove any markdown code blocks if present
-                        if (newQuery.startsWith("```json")) {
-                            newQuery = newQuery.substring(7);
-                        }
-                        if (newQuery.endsWith("```")) {
-                            newQuery = newQuery.substring(0, newQuery.length() - 3);
-                        }
-                        newQuery = newQuery.trim();
-
-                        // Validate that it's valid JSON
-                        try {
-                            new ObjectMapper().readTree(newQuery);
-                            System.out.println("[AiQueryService] Successfully parsed raw JSON response");
-                        } catch (Exception jsonException) {
-                            System.out.println("[AiQueryService] Raw response is not valid JSON: " + jsonException.getMessage());
-                            throw new RuntimeException("AI returned invalid JSON: " + newQuery, jsonException);
-                        }
-                     }
-                     System.out.println("[AiQueryService] 🔧 Generated new query with error fix: " + newQuery);
-
-                     // Validate syntax của query mới trước khi sử dụng
-                     String newQueryValidationError = validateQuerySyntax(newQuery);
-                     if (newQueryValidationError != null) {
-                         System.out.println("[AiQueryService] WARNING: New query has syntax errors: " + newQueryValidationError);
-                         return new String[]{
-                             "❌ **Elasticsearch Error (Invalid Retry Query)**\n\n" +
-                                 "AI tạo ra query mới nhưng có lỗi syntax.\n\n" +
-                                 "**Lỗi gốc:** " + errorDetails + "\n\n" +
-                                 "**Lỗi query mới:** " + newQueryValidationError + "\n\n" +
-                                 "💡 **Gợi ý:** Vui lòng thử câu hỏi khác với cách diễn đạt khác.",
-                             query
-                         };
-                     }
-
-                     // Kiểm tra xem query mới có khác query cũ không
-                     if (newQuery.equals(prevQuery)) {
-                         System.out.println("[AiQueryService] WARNING: New query is identical to failed query");
-                         return new String[]{
-                             "❌ **Elasticsearch Error (Same Query Generated)**\n\n" +
-                                 "AI tạo ra query giống hệt với query đã lỗi.\n\n" +
-                                 "**Lỗi gốc:** " + errorDetails + "\n\n" +
-                                 "💡 **Gợi ý:** Vui lòng thử câu hỏi khác với cách diễn đạt khác.",
-                             query
-                         };
-                     }
+        // ✅ Kiểm tra xem có hits hoặc aggregations không
+        // CHỈ check hits empty NẾU KHÔNG CÓ aggregations (vì size:0 query sẽ có aggs thay vì hits)
+        // Log trạng thái để debug
+        System.out.println("[AiQueryService] hasAggregations=" + shape.hasAggregations() + ", hits=" + shape.hitCount()
+            + ", totalHits=" + shape.totalHits() + ", failedShards=" + shape.failedShards());
+
+        // 0 kết quả nhưng có shard lỗi: không kết luận "không có dữ liệu", báo lỗi để query được sửa lại
+        if (shape.isEmpty() && shape.failedShards() > 0) {
+            System.out.println("[AiQueryService] ⚠️ WARNING: 0 results with " + shape.failedShards() + " failed shard(s)!");
+            System.out.println("[AiQueryService] Response: " + content.substring(0, Math.min(200, content.length())));
+            return new String[]{
+                "❌ Elasticsearch trả về lỗi trên " + shape.failedShards() + " shard (kết quả rỗng có thể do lỗi):\n\n" + content,
+                query
+            };
+        }
 
+        if (shape.isEmpty()) {
+            System.out.println("[AiQueryService] ℹ️ INFO: Elasticsearch returned 0 results (no hits and no aggregations)");
+            return new String[]{
+                "ℹ️ Không tìm thấy kết quả (0 hits) từ Elasticsearch.",
+                query
+            };
+        }
+
+        if (shape.failedShards() > 0) {
+            System.out.println("[AiQueryService] ⚠️ WARNING: Partial results, " + shape.failedShards() + " shard(s) failed");
+        }
+        System.out.println("[AiQueryService] ✅ Valid response received with data");
+        return new String[]{content, query};
+    }
+
+    /**
+     * Query AI sinh lại sau lỗi 400: query mới để retry, hoặc kết quả trả thẳng cho người dùng nếu query mới không dùng được
+     */
+    private record RetryQuery(String query, String[] rejection) {
+    }
+
+    /**
+     * Xử lý lỗi khi gọi Elasticsearch: lỗi 400 thì nhờ AI sửa query và retry một lần, lỗi khác trả về trực tiếp
+     */
+    private Mono<String[]> handleSearchError(Throwable e, RequestBody requestBody, ChatRequest chatRequest, String query) {
+        String message = String.valueOf(e.getMessage());
+        System.out.println("[AiQueryService] ERROR: Log API returned an error! " + message);
+
+        // Parse error details từ Elasticsearch
+        String errorDetails = extractElasticsearchError(message);
+        System.out.println("[AiQueryService] Parsed error details: " + errorDetails);
+
+        // Nếu là lỗi 400 Bad Request, thử sửa query bằng AI và retry một lần
+        if (message.contains("400") || message.contains("Bad Request") ||
+            message.contains("parsing_exception") || message.contains("illegal_argument_exception")) {
+
+            System.out.println("[AiQueryService] 🔄 Đang thử sửa query với AI và retry...");
+
+            // Lấy field mapping từ danh mục đã cache (không gọi thêm Elasticsearch),
+            // rồi gọi AI sinh query mới trên boundedElastic (ChatClient là blocking)
+            return fieldCatalogService.promptTextAsync()
+                .publishOn(Schedulers.boundedElastic())
+                .map(allFields -> generateRetryQuery(allFields, requestBody, chatRequest, errorDetails, query))
+                .flatMap(retry -> {
+                    if (retry.rejection() != null) {
+                        return Mono.just(retry.rejection());
+                    }
                     // Retry với query mới
                     System.out.println("[AiQueryService] 🔄 Đang thử lại với query đã sửa...");
-                    String retryContent = logApiService.search("logs-*", newQuery);
-                    System.out.println("[AiQueryService] ✅ Retry successful with corrected query");
-                    return new String[]{retryContent, newQuery};
-
-                } catch (Exception retryE) {
-                    System.out.println("[AiQueryService] Retry also failed: " + retryE.getMessage());
+                    return logApiService.searchAsync("logs-*", retry.query())
+                        .map(retryContent -> {
+                            System.out.println("[AiQueryService] ✅ Retry successful with corrected query");
+                            return new String[]{retryContent, retry.query()};
+                        })
+                        .defaultIfEmpty(new String[]{null, retry.query()});
+                })
+                .onErrorResume(retryE -> {
+                    String retryMessage = String.valueOf(retryE.getMessage());
+                    System.out.println("[AiQueryService] Retry also failed: " + retryMessage);
 
                     // Determine if it's a parsing error or Elasticsearch error
                     String retryErrorDetails;
-                    if (retryE.getMessage().contains("Cannot deserialize") || retryE.getMessage().contains("MismatchedInputException")) {
+                    if (retryMessage.contains("Cannot deserialize") || retryMessage.contains("MismatchedInputException")) {
                         retryErrorDetails = "AI Response Parsing Error - AI returned invalid format";
                     } else {
-                        retryErrorDetails = extractElasticsearchError(retryE.getMessage());
+                        retryErrorDetails = extractElasticsearchError(retryMessage);
                     }
 
-                    return new String[]{
+                    return Mono.just(new String[]{
                         "❌ **Elasticsearch Error (After Retry)**\n\n" +
                             "Query ban đầu lỗi và query được sửa cũng không thành công.\n\n" +
                             "**Lỗi ban đầu:** " + errorDetails + "\n\n" +
                             "**Lỗi sau retry:** " + retryErrorDetails + "\n\n" +
                             "💡 **Gợi ý:** Vui lòng thử câu hỏi khác hoặc kiểm tra cấu trúc dữ liệu.",
                         query
-                    };
-                }
+                    });
+                });
+        }
+
+        // Với các lỗi khác (không phải 400), trả lỗi trực tiếp
+        return Mono.just(new String[]{
+            "❌ **Elasticsearch Error**\n\n" +
+                "Không thể thực hiện truy vấn Elasticsearch.\n\n" +
+                "**Chi tiết lỗi:** " + errorDetails + "\n\n" +
+                "💡 **Gợi ý:** Kiểm tra lại câu hỏi hoặc liên hệ admin.",
+            query
+        });
+    }
+
+    /**
+     * Gọi AI sinh query mới từ lỗi của Elasticsearch (blocking, chạy trên boundedElastic)
+     */
+    private RetryQuery generateRetryQuery(String allFields, RequestBody requestBody, ChatRequest chatRequest,
+                                          String errorDetails, String query) {
+        // Lấy field mapping và tạo comparison prompt với error details
+        String prevQuery = requestBody.getBody();
+        String userMess = chatRequest.message();
+
+        String systemPrompt =
+            com.example.chatlog.utils.QueryPromptTemplate.getComparisonPrompt(
+                allFields, prevQuery, userMess, generateDateContext(LocalDateTime.now())
+            )
+            + "\n\nROLE: You are an expert Elasticsearch DSL fixer.\n"
+            + "Context:\n"
+            + "- allFields: the complete list of valid field names (with types if available). Use only these.\n"
+            + "- prevQuery: the failing query to fix without changing the user's intent.\n"
+            + "- userMess: user's intent. Preserve semantics.\n"
+            + "- dateContext: current time context if needed.\n\n"
+            + "Task:\n"
+            + "- Fix the specific issue in errorDetails.\n"
+            + "- Keep the user's intent unchanged.\n"
+            + "- Use only fields present in allFields; replace or remove invalid fields appropriately.\n\n"
+            + "Output requirements:\n"
+            + "- Return ONLY a single valid Elasticsearch JSON query. No explanations, no extra text.\n"
+            + "- Ensure valid JSON syntax.\n\n"
+            + "Best practices and constraints:\n"
+            + "1) Do NOT place \"aggs\" inside \"query\". Use proper root-level aggs (or nested aggs correctly when needed).\n"
+            + "2) Validate bool structure: must/should/filter/must_not used correctly.\n"
+            + "3) Use operators matching field types (term/terms vs match; range for numeric/date, keyword vs text).\n"
+            + "4) Ensure brackets, quotes, and commas are properly balanced.\n"
+            + "5) If date filters are present, honor date formats and time zones. Use dateContext as needed.\n"
+            + "6) Preserve size/sort/from if valid; otherwise fix or remove with minimal change.\n"
+            + "7) Mentally verify the query passes syntax and mapping checks before returning.\n";
+
+        String userPrompt =
+            "URGENT: Fix this Elasticsearch query and ensure correct syntax.\n\n"
+            + "errorDetails: " + errorDetails + "\n"
+            + "userMess: " + userMess + "\n"
+            + "prevQuery: " + prevQuery + "\n\n"
+            + "Return only the corrected JSON query.";
+
+        Prompt comparePrompt = new Prompt(
+            new SystemMessage(systemPrompt),
+            new UserMessage(userPrompt)
+        );
+
+
+        ChatOptions retryChatOptions = ChatOptions.builder()
+            .temperature(0.3D)
+            .build();
+
+        // Gọi AI để tạo query mới với isolate memory
+        String retryConversationId = "retry_" + System.currentTimeMillis();
+        String newQuery;
+
+        try {
+            // First try to get as RequestBody (normal flow)
+            RequestBody newRequestBody = chatClient.prompt(comparePrompt)
+                .options(retryChatOptions)
+                .advisors(advisorSpec -> advisorSpec.param(
+                    ChatMemory.CONVERSATION_ID, retryConversationId
+                ))
+                .call()
+                .entity(new ParameterizedTypeReference<>() {});
+
+            // Đảm bảo query luôn là 1
+            if (newRequestBody.getQuery() != 1) {
+                newRequestBody.setQuery(1);
+            }
+            newQuery = newRequestBody.getBody();
+        } catch (Exception parseException) {
+            System.out.println("[AiQueryService] Failed to parse as RequestBody, trying raw JSON: " + parseException.getMessage());
+
+            // If RequestBody parsing fails, try to get raw JSON response
+            String rawResponse = chatClient.prompt(comparePrompt)
+                .options(retryChatOptions)
+                .advisors(advisorSpec -> advisorSpec.param(
+                    ChatMemory.CONVERSATION_ID, retryConversationId
+                ))
+                .call()
+                .content();
+
+            // Clean and validate the raw JSON response
+            newQuery = rawResponse.trim();
+
+            // Remove any markdown code blocks if present
+            if (newQuery.startsWith("```json")) {
+                newQuery = newQuery.substring(7);
             }
+            if (newQuery.endsWith("```")) {
+                newQuery = newQuery.substring(0, newQuery.length() - 3);
+            }
+            newQuery = newQuery.trim();
+
+            // Validate that it's valid JSON
+            try {
+                new ObjectMapper().readTree(newQuery);
+                System.out.println("[AiQueryService] Successfully parsed raw JSON response");
+            } catch (Exception jsonException) {
+                System.out.println("[AiQueryService] Raw response is not valid JSON: " + jsonException.getMessage());
+                throw new RuntimeException("AI returned invalid JSON: " + newQuery, jsonException);
+            }
+        }
+        System.out.println("[AiQueryService] 🔧 Generated new query with error fix: " + newQuery);
+
+        // Validate syntax của query mới trước khi sử dụng
+        String newQueryValidationError = validateQuerySyntax(newQuery);
+        if (newQueryValidationError != null) {
+            System.out.println("[AiQueryService] WARNING: New query has syntax errors: " + newQueryValidationError);
+            return new RetryQuery(null, new String[]{
+                "❌ **Elasticsearch Error (Invalid Retry Query)**\n\n" +
+                    "AI tạo ra query mới nhưng có lỗi syntax.\n\n" +
+                    "**Lỗi gốc:** " + errorDetails + "\n\n" +
+                    "**Lỗi query mới:** " + newQueryValidationError + "\n\n" +
+                    "💡 **Gợi ý:** Vui lòng thử câu hỏi khác với cách diễn đạt khác.",
+                query
+            });
+        }
 
-            // Với các lỗi khác (không phải 400), trả lỗi trực tiếp
-            return new String[]{
-                "❌ **Elasticsearch Error**\n\n" +
-                    "Không thể thực hiện truy vấn Elasticsearch.\n\n" +
-                    "**Chi tiết lỗi:** " + errorDetails + "\n\n" +
-                    "💡 **Gợi ý:** Kiểm tra lại câu hỏi hoặc liên hệ admin.",
+        // Kiểm tra xem query mới có khác query cũ không
+        if (newQuery.equals(prevQuery)) {
+            System.out.println("[AiQueryService] WARNING: New query is identical to failed query");
+            return new RetryQuery(null, new String[]{
+                "❌ **Elasticsearch Error (Same Query Generated)**\n\n" +
+                    "AI tạo ra query giống hệt với query đã lỗi.\n\n" +
+                    "**Lỗi gốc:** " + errorDetails + "\n\n" +
+                    "💡 **Gợi ý:** Vui lòng thử câu hỏi khác với cách diễn đạt khác.",
                 query
-            };
+            });
         }
+        return new RetryQuery(newQuery, null);
     }
 
 
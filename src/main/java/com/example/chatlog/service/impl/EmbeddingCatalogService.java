@@ -0,0 +1,122 @@
+package com.example.chatlog.service.impl;
+
+import com.example.chatlog.repository.AiEmbeddingRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Danh mục số lượng embeddings (chưa xóa) theo source_file, giữ trong bộ nhớ
+ *
+ * - Load một lần bằng một câu GROUP BY (không đọc cột vector/metadata)
+ * - Cập nhật tăng dần khi insert / soft delete
+ * - Đối soát định kỳ với database để sửa sai lệch (ví dụ instance khác ghi dữ liệu)
+ */
+@Service
+public class EmbeddingCatalogService {
+
+    static final String UNKNOWN_SOURCE = "(unknown)";
+
+    @Autowired
+    private AiEmbeddingRepository aiEmbeddingRepository;
+
+    private volatile Map<String, AtomicLong> countsBySourceFile;
+    private volatile OffsetDateTime lastRefreshedAt;
+
+    /**
+     * Load lại toàn bộ số liệu từ database
+     */
+    public synchronized void refresh() {
+        List<Object[]> rows = aiEmbeddingRepository.countNotDeletedGroupBySourceFile();
+        Map<String, AtomicLong> counts = new ConcurrentHashMap<>();
+        for (Object[] row : rows) {
+            String sourceFile = row[0] != null ? row[0].toString() : UNKNOWN_SOURCE;
+            long count = row[1] != null ? ((Number) row[1]).longValue() : 0L;
+            counts.put(sourceFile, new AtomicLong(count));
+        }
+        countsBySourceFile = counts;
+        lastRefreshedAt = OffsetDateTime.now();
+    }
+
+    @Scheduled(
+        initialDelayString = "${vector-search.catalog.reconcile-interval-ms:900000}",
+        fixedDelayString = "${vector-search.catalog.reconcile-interval-ms:900000}"
+    )
+    public void scheduledReconcile() {
+        try {
+            refresh();
+        } catch (Exception e) {
+            System.err.println("[EmbeddingCatalogService] ❌ Lỗi khi đối soát catalog: " + e.getMessage());
+        }
+    }
+
+    public boolean isLoaded() {
+        return countsBySourceFile != null;
+    }
+
+    public OffsetDateTime getLastRefreshedAt() {
+        return lastRefreshedAt;
+    }
+
+    /**
+     * Tổng số embeddings chưa xóa
+     */
+    public long total() {
+        long total = 0;
+        for (AtomicLong count : counts().values()) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    /**
+     * Số embeddings chưa xóa của một source file
+     */
+    public long countBySourceFile(String sourceFile) {
+        AtomicLong count = counts().get(sourceFile != null ? sourceFile : UNKNOWN_SOURCE);
+        return count != null ? count.get() : 0L;
+    }
+
+    /**
+     * Snapshot số liệu theo source file (sắp xếp theo tên)
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> result = new TreeMap<>();
+        counts().forEach((sourceFile, count) -> result.put(sourceFile, count.get()));
+        return result;
+    }
+
+    public void recordInsert(String sourceFile) {
+        adjust(sourceFile, 1);
+    }
+
+    public void recordSoftDelete(String sourceFile) {
+        adjust(sourceFile, -1);
+    }
+
+    private void adjust(String sourceFile, long delta) {
+        Map<String, AtomicLong> counts = countsBySourceFile;
+        if (counts == null) {
+            // Chưa load: lần đọc đầu tiên sẽ lấy số liệu chính xác từ database
+            return;
+        }
+        counts.computeIfAbsent(sourceFile != null ? sourceFile : UNKNOWN_SOURCE, k -> new AtomicLong())
+            .updateAndGet(v -> Math.max(0, v + delta));
+    }
+
+    private Map<String, AtomicLong> counts() {
+        Map<String, AtomicLong> counts = countsBySourceFile;
+        if (counts == null) {
+            refresh();
+            counts = countsBySourceFile;
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,203 @@
+package com.example.chatlog.service.impl;
+
+import com.example.chatlog.repository.AiEmbeddingMaintenanceRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.OffsetDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Compaction định kỳ cho ai_embedding
+ *
+ * - Bản ghi soft delete quá retention-days bị xóa hẳn (mode = delete) hoặc chuyển sang ai_embedding_archive (mode = archive),
+ *   theo từng lô batch-size để không giữ lock lâu
+ * - Tạo lại các partial index (WHERE is_deleted = 0) còn thiếu hoặc không hợp lệ
+ * - VACUUM ANALYZE sau khi dọn; REINDEX index HNSW khi số bản ghi dọn vượt reindex-ratio so với số bản ghi còn lại
+ *   (HNSW không thu hồi node đã xóa, chất lượng và tốc độ kNN giảm dần khi kho tri thức thay đổi nhiều)
+ * - Báo cáo bloat (soft delete, dead tuple, kích thước bảng / index) qua /actuator/embeddingmaintenance và metrics
+ */
+@Service
+public class EmbeddingCompactionService {
+
+    @Autowired
+    private AiEmbeddingMaintenanceRepository maintenanceRepository;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${vector-search.compaction.enabled:true}")
+    private boolean enabled;
+
+    @Value("${vector-search.compaction.retention-days:30}")
+    private int retentionDays;
+
+    // delete | archive
+    @Value("${vector-search.compaction.mode:delete}")
+    private String mode;
+
+    @Value("${vector-search.compaction.batch-size:1000}")
+    private int batchSize;
+
+    @Value("${vector-search.compaction.reindex-ratio:0.2}")
+    private double reindexRatio;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private volatile Map<String, Object> lastStats = Map.of();
+    private volatile Map<String, Object> lastRun = Map.of();
+
+    @PostConstruct
+    public void registerMetrics() {
+        meterRegistry.gauge("ai.embedding.rows", Tags.of("state", "active"), this,
+            service -> service.statAsDouble("active_rows"));
+        meterRegistry.gauge("ai.embedding.rows", Tags.of("state", "soft_deleted"), this,
+            service -> service.statAsDouble("soft_deleted_rows"));
+        meterRegistry.gauge("ai.embedding.rows", Tags.of("state", "dead_tuples"), this,
+            service -> service.statAsDouble("dead_tuples"));
+        meterRegistry.gauge("ai.embedding.bytes", this, service -> service.statAsDouble("total_bytes"));
+    }
+
+    @Scheduled(cron = "${vector-search.compaction.cron:0 30 3 * * *}")
+    public void scheduledCompaction() {
+        if (enabled) {
+            compact();
+        }
+    }
+
+    // Đo một lần khi khởi động xong: gauge và endpoint không phải đọc 0 / rỗng cho tới lần đo định kỳ đầu tiên
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadStatsOnStartup() {
+        scheduledStatsRefresh();
+    }
+
+    // Đo lại bloat định kỳ để endpoint / gauge đọc bản cache thay vì quét bảng mỗi lần
+    @Scheduled(
+        initialDelayString = "${vector-search.compaction.stats-interval-ms:900000}",
+        fixedDelayString = "${vector-search.compaction.stats-interval-ms:900000}"
+    )
+    public void scheduledStatsRefresh() {
+        if (running.get()) {
+            return;
+        }
+        try {
+            refreshStats();
+        } catch (Exception e) {
+            System.err.println("[EmbeddingCompactionService] ⚠️ Không đọc được số liệu ai_embedding: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Chạy một lượt compaction (bỏ qua nếu đang có lượt khác chạy), trả về kết quả
+     */
+    public Map<String, Object> compact() {
+        if (!running.compareAndSet(false, true)) {
+            return Map.of("skipped", "Compaction đang chạy");
+        }
+        long start = System.currentTimeMillis();
+        Map<String, Object> run = new LinkedHashMap<>();
+        run.put("startedAt", String.valueOf(OffsetDateTime.now()));
+        try {
+            Map<String, Object> before = refreshStats();
+            boolean archive = "archive".equalsIgnoreCase(mode);
+            OffsetDateTime cutoff = OffsetDateTime.now().minusDays(retentionDays);
+            int limit = Math.max(1, batchSize);
+            int purged = 0;
+            int batch;
+            do {
+                batch = archive
+                    ? maintenanceRepository.archiveSoftDeleted(cutoff, limit)
+                    : maintenanceRepository.purgeSoftDeleted(cutoff, limit);
+                purged += batch;
+            } while (batch >= limit);
+            run.put(archive ? "archived" : "deleted", purged);
+
+            run.put("indexesRepaired", ensurePartialIndexes());
+
+            if (purged > 0) {
+                maintenanceRepository.vacuumAnalyze();
+                long active = asLong(before.get("active_rows"));
+                if (purged >= Math.max(1, active) * reindexRatio) {
+                    maintenanceRepository.reindex(AiEmbeddingMaintenanceRepository.VECTOR_INDEX);
+                    run.put("reindexed", AiEmbeddingMaintenanceRepository.VECTOR_INDEX);
+                }
+            }
+            run.put("statsBefore", before);
+            run.put("statsAfter", refreshStats());
+            System.out.println("[EmbeddingCompactionService] ✅ Compaction: " + purged + " bản ghi soft delete trước "
+                + cutoff.toLocalDate() + " đã " + (archive ? "archive" : "xóa") + " trong "
+                + (System.currentTimeMillis() - start) + "ms");
+        } catch (Exception e) {
+            run.put("error", e.getMessage());
+            System.err.println("[EmbeddingCompactionService] ❌ Lỗi khi compaction ai_embedding: " + e.getMessage());
+        } finally {
+            run.put("durationMs", System.currentTimeMillis() - start);
+            lastRun = run;
+            running.set(false);
+        }
+        return run;
+    }
+
+    /**
+     * Đọc lại số liệu bloat từ database
+     */
+    public Map<String, Object> refreshStats() {
+        Map<String, Object> stats = maintenanceRepository.tableStats();
+        lastStats = stats;
+        return stats;
+    }
+
+    public Map<String, Object> getLastStats() {
+        return lastStats;
+    }
+
+    public Map<String, Object> getLastRun() {
+        return lastRun;
+    }
+
+    /**
+     * Tạo các partial index còn thiếu; index không hợp lệ (build CONCURRENTLY bị ngắt) được drop rồi tạo lại
+     *
+     * @return Số index đã drop / tạo lại
+     */
+    private int ensurePartialIndexes() {
+        int repaired = 0;
+        for (String invalid : maintenanceRepository.findInvalidIndexes()) {
+            if (AiEmbeddingMaintenanceRepository.PARTIAL_INDEXES.containsKey(invalid)) {
+                System.out.println("[EmbeddingCompactionService] ⚠️ Index " + invalid + " không hợp lệ, tạo lại");
+                maintenanceRepository.dropIndex(invalid);
+                repaired++;
+            }
+        }
+        Map<String, ?> existing = asMap(refreshStats().get("indexes"));
+        for (Map.Entry<String, String> index : AiEmbeddingMaintenanceRepository.PARTIAL_INDEXES.entrySet()) {
+            if (!existing.containsKey(index.getKey())) {
+                System.out.println("[EmbeddingCompactionService] 🔧 Tạo index " + index.getKey());
+                maintenanceRepository.execute(index.getValue());
+                repaired++;
+            }
+        }
+        return repaired;
+    }
+
+    private double statAsDouble(String key) {
+        return asLong(lastStats.get(key));
+    }
+
+    private static long asLong(Object value) {
+        return value instanceof Number number ? number.longValue() : 0L;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, ?> asMap(Object value) {
+        return value instanceof Map<?, ?> map ? (Map<String, ?>) map : Map.of();
+    }
+}
@@ -0,0 +1,189 @@
+package com.example.chatlog.service.impl;
+
+import com.example.chatlog.dto.DataExample;
+import com.example.chatlog.utils.ExampleLibrary;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.stereotype.Service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Thư viện ví dụ dùng chung: parse các file kho tri thức một lần, giữ trong bộ nhớ dạng bất biến
+ *
+ * - Parse bằng Jackson streaming qua ExampleReader (đọc từng phần tử của mảng JSON, không dựng cả cây)
+ * - Tra cứu O(1) theo question / keyword / scenario qua ExampleLibrary
+ * - reload() parse lại rồi swap nguyên khối, reader đang giữ bản cũ không bị ảnh hưởng
+ *
+ * Nguồn file: vector-search.knowledge-base.directory (mọi *.json trong thư mục, xem KnowledgeBaseWatcher)
+ * hoặc các file mặc định trong classpath khi để trống
+ * Đồng bộ DB không dùng thư viện này mà đọc tuần tự từng file qua open() (KnowledgeBaseIndexingService)
+ */
+@Service
+public class ExampleLibraryService {
+
+    private static final String[] CLASSPATH_KNOWLEDGE_BASE_FILES = {
+        "fortigate_queries_full.json"
+    };
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    // Để trống: đọc các file mặc định trong classpath (không hot reload)
+    @Value("${vector-search.knowledge-base.directory:}")
+    private String directory;
+
+    private volatile ExampleLibrary library;
+
+    /**
+     * Thư viện hiện tại (parse lần đầu khi được gọi)
+     */
+    public ExampleLibrary getLibrary() {
+        ExampleLibrary current = library;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (library == null) {
+                library = load();
+            }
+            return library;
+        }
+    }
+
+    /**
+     * Parse lại toàn bộ file rồi swap thư viện mới vào
+     */
+    public synchronized ExampleLibrary reload() {
+        library = load();
+        return library;
+    }
+
+    public List<DataExample> getExamples() {
+        return getLibrary().examples();
+    }
+
+    /**
+     * Thư mục kho tri thức đã cấu hình, null nếu đang dùng file trong classpath
+     */
+    public Path getDirectory() {
+        return directory == null || directory.isBlank() ? null : Paths.get(directory);
+    }
+
+    /**
+     * Tên các file kho tri thức hiện có (thư mục: mọi *.json theo thứ tự tên; classpath: danh sách mặc định)
+     * source_file trong DB là tên file để khớp với bản ghi đã có
+     */
+    public List<String> sourceFiles() throws IOException {
+        Path dir = getDirectory();
+        if (dir == null) {
+            return List.of(CLASSPATH_KNOWLEDGE_BASE_FILES);
+        }
+        List<String> fileNames = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.json")) {
+            files.forEach(file -> fileNames.add(file.getFileName().toString()));
+        }
+        fileNames.sort(null);
+        return fileNames;
+    }
+
+    /**
+     * Mở một file kho tri thức để đọc tuần tự từng ví dụ (không giữ cả file trong bộ nhớ)
+     */
+    public ExampleReader open(String fileName) throws IOException {
+        Path dir = getDirectory();
+        InputStream inputStream = dir == null
+            ? new ClassPathResource(fileName).getInputStream()
+            : Files.newInputStream(dir.resolve(fileName));
+        return new ExampleReader(objectMapper, inputStream);
+    }
+
+    private ExampleLibrary load() {
+        long startTime = System.currentTimeMillis();
+        ExampleLibrary previous = library;
+        List<String> fileNames;
+        try {
+            fileNames = sourceFiles();
+        } catch (IOException e) {
+            System.err.println("❌ Không đọc được thư mục kho tri thức " + getDirectory() + ": " + e.getMessage());
+            return previous != null ? previous : ExampleLibrary.empty();
+        }
+        Map<String, List<DataExample>> bySourceFile = new LinkedHashMap<>();
+        for (String fileName : fileNames) {
+            try (ExampleReader reader = open(fileName)) {
+                bySourceFile.put(fileName, reader.readAll());
+            } catch (Exception e) {
+                // File đang ghi dở hoặc lỗi cú pháp: giữ bản parse trước để không mất ví dụ của file
+                System.err.println("❌ Lỗi khi đọc file " + fileName + ": " + e.getMessage());
+                if (previous != null && previous.sourceFiles().contains(fileName)) {
+                    bySourceFile.put(fileName, previous.examples(fileName));
+                }
+            }
+        }
+        ExampleLibrary loaded = ExampleLibrary.of(bySourceFile);
+        System.out.println("[ExampleLibraryService] ✅ Loaded " + loaded.size() + " examples from "
+            + bySourceFile.size() + " file(s) in " + (System.currentTimeMillis() - startTime) + "ms");
+        return loaded;
+    }
+
+    /**
+     * Đọc tuần tự mảng JSON các ví dụ: mỗi lần next() chỉ dựng một DataExample
+     */
+    public static final class ExampleReader implements Closeable {
+
+        private final ObjectMapper objectMapper;
+        private final JsonParser parser;
+        private boolean started;
+
+        private ExampleReader(ObjectMapper objectMapper, InputStream inputStream) throws IOException {
+            this.objectMapper = objectMapper;
+            this.parser = objectMapper.getFactory().createParser(inputStream);
+        }
+
+        /**
+         * @return Ví dụ tiếp theo, null khi hết mảng
+         */
+        public DataExample next() throws IOException {
+            if (!started) {
+                started = true;
+                if (parser.nextToken() != JsonToken.START_ARRAY) {
+                    throw new IOException("Kho tri thức phải là mảng JSON");
+                }
+            }
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.END_ARRAY) {
+                return null;
+            }
+            if (token != JsonToken.START_OBJECT) {
+                throw new IOException("Phần tử không hợp lệ trong kho tri thức: " + token);
+            }
+            return objectMapper.readValue(parser, DataExample.class);
+        }
+
+        public List<DataExample> readAll() throws IOException {
+            List<DataExample> examples = new ArrayList<>();
+            for (DataExample example = next(); example != null; example = next()) {
+                examples.add(example);
+            }
+            return examples;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // AUTO_CLOSE_SOURCE mặc định bật: đóng luôn InputStream
+            parser.close();
+        }
+    }
+}
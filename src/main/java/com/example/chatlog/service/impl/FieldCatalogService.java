@@ -0,0 +1,180 @@
+package com.example.chatlog.service.impl;
+
+import com.example.chatlog.service.LogApiService;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Danh mục field (tên + kiểu) của elastic.field-catalog.index, giữ trong bộ nhớ thay cho _field_caps mỗi lần cần
+ *
+ * - Nạp khi ứng dụng sẵn sàng, sau đó nạp lại khi quá ttl-ms hoặc khi xuất hiện / mất backing index
+ *   (kiểm tra bằng _resolve/index mỗi check-interval-ms, rẻ hơn nhiều so với _field_caps)
+ * - Các lời gọi refresh đồng thời dùng chung một request
+ * - Refresh lỗi thì giữ bản cũ
+ * - promptText() dựng sẵn một lần mỗi lần nạp; hiện chỉ prompt sửa query lỗi 400 của AiQueryService dùng danh sách này
+ */
+@Service
+public class FieldCatalogService {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    @Autowired
+    private LogApiService logApiService;
+
+    @Value("${elastic.field-catalog.index:logs-*}")
+    private String index;
+
+    @Value("${elastic.field-catalog.ttl-ms:600000}")
+    private long ttlMs;
+
+    /**
+     * Một lần nạp: field → kiểu (nhiều kiểu giữa các index thì nối bằng "|"), các index đã nạp, text cho prompt
+     */
+    public record Snapshot(Map<String, String> fieldTypes, Set<String> indices, String promptText, long loadedAt) {
+    }
+
+    private volatile Snapshot snapshot;
+    private Mono<Snapshot> inFlight;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        refresh().subscribe(
+            loaded -> { },
+            e -> System.err.println("[FieldCatalogService] ⚠️ Không nạp được danh mục field lúc khởi động: " + e.getMessage())
+        );
+    }
+
+    /**
+     * Kiểm tra định kỳ: quá TTL hoặc tập backing index thay đổi thì nạp lại
+     */
+    @Scheduled(
+        initialDelayString = "${elastic.field-catalog.check-interval-ms:60000}",
+        fixedDelayString = "${elastic.field-catalog.check-interval-ms:60000}"
+    )
+    public void checkForChanges() {
+        Snapshot current = snapshot;
+        if (current == null || System.currentTimeMillis() - current.loadedAt() > ttlMs) {
+            refresh().onErrorResume(e -> Mono.empty()).block();
+            return;
+        }
+        try {
+            Set<String> indices = logApiService.resolveIndexAsync(index)
+                .map(FieldCatalogService::parseResolvedIndices)
+                .block();
+            if (indices != null && !indices.equals(current.indices())) {
+                System.out.println("[FieldCatalogService] 🔄 Backing index của " + index + " thay đổi, nạp lại danh mục field");
+                refresh().onErrorResume(e -> Mono.empty()).block();
+            }
+        } catch (Exception e) {
+            System.err.println("[FieldCatalogService] ⚠️ Không kiểm tra được index " + index + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Danh mục hiện tại; chưa có (hoặc lần nạp đầu đã lỗi) thì nạp ngay
+     */
+    public Mono<Snapshot> getSnapshot() {
+        Snapshot current = snapshot;
+        return current != null ? Mono.just(current) : refresh();
+    }
+
+    /**
+     * Danh sách "field:type" cho prompt, rỗng nếu chưa nạp được
+     */
+    public Mono<String> promptTextAsync() {
+        return getSnapshot()
+            .map(Snapshot::promptText)
+            .onErrorResume(e -> {
+                System.err.println("[FieldCatalogService] ⚠️ Không lấy được danh mục field: " + e.getMessage());
+                return Mono.just("");
+            })
+            .defaultIfEmpty("");
+    }
+
+    public synchronized Mono<Snapshot> refresh() {
+        if (inFlight == null) {
+            long start = System.currentTimeMillis();
+            inFlight = logApiService.getFieldCapsAsync(index)
+                .map(FieldCatalogService::parseFieldCaps)
+                .doOnNext(loaded -> {
+                    snapshot = loaded;
+                    System.out.println("[FieldCatalogService] ✅ Nạp " + loaded.fieldTypes().size() + " field từ "
+                        + loaded.indices().size() + " index trong " + (System.currentTimeMillis() - start) + "ms");
+                })
+                .doFinally(signal -> clearInFlight())
+                .cache();
+        }
+        return inFlight;
+    }
+
+    private synchronized void clearInFlight() {
+        inFlight = null;
+    }
+
+    private static Snapshot parseFieldCaps(String json) {
+        try {
+            JsonNode root = OBJECT_MAPPER.readTree(json);
+            Set<String> indices = new TreeSet<>();
+            for (JsonNode indexName : root.path("indices")) {
+                indices.add(indexName.asText());
+            }
+            Map<String, String> fieldTypes = new TreeMap<>();
+            Iterator<Map.Entry<String, JsonNode>> fields = root.path("fields").fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                // Bỏ metadata field (_id, _source, ...) và object cha
+                if (field.getKey().startsWith("_")) {
+                    continue;
+                }
+                StringJoiner types = new StringJoiner("|");
+                field.getValue().fieldNames().forEachRemaining(type -> {
+                    if (!"object".equals(type) && !"nested".equals(type)) {
+                        types.add(type);
+                    }
+                });
+                if (types.length() > 0) {
+                    fieldTypes.put(field.getKey(), types.toString());
+                }
+            }
+            StringBuilder promptText = new StringBuilder(fieldTypes.size() * 32);
+            fieldTypes.forEach((name, type) -> promptText.append(name).append(':').append(type).append('\n'));
+            return new Snapshot(Map.copyOf(fieldTypes), Set.copyOf(indices), promptText.toString(),
+                System.currentTimeMillis());
+        } catch (Exception e) {
+            throw new IllegalStateException("Response _field_caps không hợp lệ: " + e.getMessage(), e);
+        }
+    }
+
+    // Index thường + backing index của data stream (field_caps trả về tên backing index)
+    private static Set<String> parseResolvedIndices(String json) {
+        try {
+            JsonNode root = OBJECT_MAPPER.readTree(json);
+            Set<String> indices = new TreeSet<>();
+            for (JsonNode indexNode : root.path("indices")) {
+                indices.add(indexNode.path("name").asText());
+            }
+            for (JsonNode dataStream : root.path("data_streams")) {
+                for (JsonNode backing : dataStream.path("backing_indices")) {
+                    indices.add(backing.asText());
+                }
+            }
+            return indices;
+        } catch (Exception e) {
+            throw new IllegalStateException("Response _resolve/index không hợp lệ: " + e.getMessage(), e);
+        }
+    }
+}
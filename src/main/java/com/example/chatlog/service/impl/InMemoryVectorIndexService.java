@@ -0,0 +1,703 @@
+package com.example.chatlog.service.impl;
+
+import com.example.chatlog.dto.KnowledgeBaseExample;
+import com.example.chatlog.dto.ScoredEmbedding;
+import com.example.chatlog.entity.ai.AiEmbedding;
+import com.example.chatlog.service.AiEmbeddingService;
+import com.example.chatlog.utils.Bm25Index;
+import com.example.chatlog.utils.EmbeddingSnapshot;
+import com.example.chatlog.utils.HnswIndex;
+import com.example.chatlog.utils.Int8DotProduct;
+import com.example.chatlog.utils.Int8VectorIndex;
+import com.example.chatlog.utils.MaximalMarginalRelevance;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+
+/**
+ * Chỉ mục HNSW trong bộ nhớ cho bảng ai_embedding
+ * Postgres vẫn là nguồn dữ liệu chính; index này chỉ là bản sao để top-K lookup không phải đi qua mạng
+ *
+ * Khởi động nguội: memory-map snapshot trên đĩa (nếu có) để phục vụ ngay bằng flat scan,
+ * HNSW được build nền từ snapshot rồi swap vào. Mỗi lần rebuild() toàn bộ từ database thì ghi lại snapshot.
+ *
+ * Đồng bộ kho tri thức cập nhật index tăng dần: addAll() với bản ghi vừa insert, removeAll() với bản ghi soft delete
+ *
+ * vector-search.mode = int8: thay HNSW bằng Int8VectorIndex (vector int8 trên heap, quét SIMD),
+ * top ứng viên được rerank bằng float32 đọc từ snapshot memory-map
+ *
+ * hybridSearch: kết hợp kết quả vector với BM25 trên question + keywords bằng reciprocal-rank fusion
+ */
+@Service
+public class InMemoryVectorIndexService {
+
+    // @Lazy: loadSnapshot() chỉ đọc file trên đĩa, không cần AiEmbeddingService lúc khởi tạo bean này.
+    // Secondary datasource vẫn được khởi tạo lúc startup qua các bean khác (VectorSearchService,
+    // KnowledgeBaseIndexingService, ...) nhưng tìm kiếm từ snapshot không query database
+    @Autowired
+    @Lazy
+    private AiEmbeddingService aiEmbeddingService;
+
+    @Value("${vector-search.hnsw.dimensions:1536}")
+    private int dimensions;
+
+    @Value("${vector-search.hnsw.m:16}")
+    private int m;
+
+    @Value("${vector-search.hnsw.ef-construction:200}")
+    private int efConstruction;
+
+    @Value("${vector-search.hnsw.ef-search:64}")
+    private int efSearch;
+
+    // hnsw | int8 | hybrid dùng index này; pgvector | simple: không build / resync
+    @Value("${vector-search.mode:hnsw}")
+    private String searchMode;
+
+    @Value("${vector-search.int8.rerank-candidates:32}")
+    private int rerankCandidates;
+
+    private final Int8DotProduct int8Scorer = Int8DotProduct.best();
+
+    // Để trống để tắt snapshot
+    @Value("${vector-search.snapshot.path:}")
+    private String snapshotPath;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * Vector float32 gốc dùng để rerank trong mode int8:
+     * node < snapshot.count() đọc từ file memory-map, các node addAll() sau đó giữ trên heap
+     */
+    private static final class FullPrecisionVectors implements IntFunction<float[]> {
+        final EmbeddingSnapshot snapshot;
+        final List<float[]> appended;
+
+        FullPrecisionVectors(EmbeddingSnapshot snapshot, List<float[]> appended) {
+            this.snapshot = snapshot;
+            this.appended = appended;
+        }
+
+        @Override
+        public float[] apply(int node) {
+            int base = snapshot != null ? snapshot.count() : 0;
+            if (node < base) {
+                return snapshot.vector(node);
+            }
+            return node - base < appended.size() ? appended.get(node - base) : null;
+        }
+    }
+
+    /**
+     * Trạng thái index bất biến theo từng lần rebuild, được swap nguyên khối để reader không bị lẫn dữ liệu
+     * Chỉ một trong index / quantized khác null; cả hai null: đang phục vụ bằng flat scan trên snapshot
+     * đã memory-map (index đang build nền)
+     */
+    private static final class IndexState {
+        final HnswIndex index;
+        final Int8VectorIndex quantized;
+        final FullPrecisionVectors fullPrecision;
+        final EmbeddingSnapshot snapshot;
+        final float[] inverseNorms;
+        final List<AiEmbedding> entries;
+        final Map<UUID, Integer> nodeById;
+        // Entry đã soft delete (index vector tự bỏ qua qua markDeleted, BM25/flat scan lọc theo set này)
+        final Set<UUID> removed = ConcurrentHashMap.newKeySet();
+        // Chỉ dùng khi đang phục vụ từ snapshot: bản ghi insert trong lúc index build nền, thêm vào sau khi swap
+        final List<AiEmbedding> pendingAdds = new ArrayList<>();
+        // BM25 build lazy ở lần hybrid search đầu tiên trên trạng thái này
+        volatile Bm25Index keywordIndex;
+        // Read model của từng node, tách từ metadata một lần ở lần đầu node xuất hiện trong kết quả
+        final Map<Integer, KnowledgeBaseExample> examples = new ConcurrentHashMap<>();
+
+        IndexState(HnswIndex index, List<AiEmbedding> entries, Map<UUID, Integer> nodeById) {
+            this(index, null, null, null, null, entries, nodeById);
+        }
+
+        IndexState(Int8VectorIndex quantized, FullPrecisionVectors fullPrecision,
+                   List<AiEmbedding> entries, Map<UUID, Integer> nodeById) {
+            this(null, quantized, fullPrecision, null, null, entries, nodeById);
+        }
+
+        IndexState(HnswIndex index, Int8VectorIndex quantized, FullPrecisionVectors fullPrecision,
+                   EmbeddingSnapshot snapshot, float[] inverseNorms,
+                   List<AiEmbedding> entries, Map<UUID, Integer> nodeById) {
+            this.index = index;
+            this.quantized = quantized;
+            this.fullPrecision = fullPrecision;
+            this.snapshot = snapshot;
+            this.inverseNorms = inverseNorms;
+            this.entries = entries;
+            this.nodeById = nodeById;
+        }
+
+        int size() {
+            if (index != null) {
+                return index.size();
+            }
+            return quantized != null ? quantized.size() : entries.size();
+        }
+    }
+
+    private volatile IndexState state;
+
+    /**
+     * Mode hiện tại có dùng index này không (pgvector / simple thì không build, không resync)
+     */
+    public boolean isEnabled() {
+        return "hnsw".equalsIgnoreCase(searchMode) || isInt8Mode() || "hybrid".equalsIgnoreCase(searchMode);
+    }
+
+    /**
+     * Index đã sẵn sàng phục vụ tìm kiếm chưa
+     */
+    public boolean isReady() {
+        IndexState current = state;
+        return current != null && current.size() > 0;
+    }
+
+    public int size() {
+        IndexState current = state;
+        return current != null ? current.size() : 0;
+    }
+
+    /**
+     * Số bản ghi chưa xóa mà index đang giữ (kể cả bản ghi chờ thêm sau khi build từ snapshot), để so với database
+     */
+    public synchronized int activeSize() {
+        IndexState current = state;
+        if (current == null) {
+            return 0;
+        }
+        return current.nodeById.size() - current.removed.size() + current.pendingAdds.size();
+    }
+
+    /**
+     * Nạp snapshot từ đĩa lúc khởi động, không cần kết nối database
+     */
+    @PostConstruct
+    public void loadSnapshot() {
+        Path path = snapshotFile();
+        if (!isEnabled() || path == null || !Files.exists(path)) {
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        try {
+            EmbeddingSnapshot snapshot = EmbeddingSnapshot.open(path);
+            if (snapshot.dimensions() != dimensions) {
+                System.out.println("[InMemoryVectorIndexService] ⚠️ Snapshot có " + snapshot.dimensions()
+                    + " chiều, cấu hình là " + dimensions + " → bỏ qua");
+                return;
+            }
+            List<AiEmbedding> entries = new ArrayList<>(snapshot.count());
+            Map<UUID, Integer> nodeById = new HashMap<>();
+            float[] inverseNorms = new float[snapshot.count()];
+            for (int i = 0; i < snapshot.count(); i++) {
+                AiEmbedding entry = readEntry(snapshot.metadata(i));
+                entries.add(entry);
+                nodeById.put(entry.getId(), i);
+                float norm = (float) Math.sqrt(snapshot.dot(i, snapshot.vector(i)));
+                inverseNorms[i] = norm > 0 ? 1f / norm : 0f;
+            }
+            IndexState snapshotState = new IndexState(null, null, null, snapshot, inverseNorms, entries, nodeById);
+            synchronized (this) {
+                if (state != null) {
+                    return;
+                }
+                state = snapshotState;
+            }
+            System.out.println("[InMemoryVectorIndexService] ✅ Snapshot mapped: " + snapshot.count()
+                + " vectors in " + (System.currentTimeMillis() - startTime) + "ms (" + path + ")");
+
+            Thread builder = new Thread(() -> buildFromSnapshot(snapshotState), "hnsw-snapshot-builder");
+            builder.setDaemon(true);
+            builder.start();
+        } catch (Exception e) {
+            System.err.println("[InMemoryVectorIndexService] ❌ Không đọc được snapshot " + path + ": " + e.getMessage());
+        }
+    }
+
+    private void buildFromSnapshot(IndexState snapshotState) {
+        long startTime = System.currentTimeMillis();
+        EmbeddingSnapshot snapshot = snapshotState.snapshot;
+        IndexState built;
+        if (isInt8Mode()) {
+            Int8VectorIndex quantized = new Int8VectorIndex(dimensions, snapshot.count(), int8Scorer);
+            for (int i = 0; i < snapshot.count(); i++) {
+                quantized.add(snapshot.vector(i));
+            }
+            built = new IndexState(quantized, new FullPrecisionVectors(snapshot, new ArrayList<>()),
+                snapshotState.entries, snapshotState.nodeById);
+        } else {
+            HnswIndex index = new HnswIndex(dimensions, m, efConstruction);
+            for (int i = 0; i < snapshot.count(); i++) {
+                index.add(snapshot.vector(i));
+            }
+            built = new IndexState(index, snapshotState.entries, snapshotState.nodeById);
+        }
+        synchronized (this) {
+            // Chỉ swap nếu trong lúc build chưa có dữ liệu mới hơn từ database
+            if (state != snapshotState) {
+                return;
+            }
+            // Entry bị soft delete trong lúc build phải giữ trạng thái xóa: lần đồng bộ lúc khởi động chạy song song
+            // với build nền và gọi removeAll() trên state snapshot (sửa removed tại chỗ, state không đổi)
+            for (UUID id : snapshotState.removed) {
+                Integer node = built.nodeById.get(id);
+                if (node != null) {
+                    markDeleted(built, node);
+                }
+                built.removed.add(id);
+            }
+            state = built;
+            // Bản ghi insert trong lúc build (flat scan trên snapshot không thêm được)
+            addAll(snapshotState.pendingAdds);
+        }
+        System.out.println("[InMemoryVectorIndexService] ✅ " + describe(built) + " built from snapshot: "
+            + built.size() + " vectors in " + (System.currentTimeMillis() - startTime) + "ms");
+    }
+
+    /**
+     * Load lại toàn bộ embeddings chưa xóa từ secondary datasource, build index mới và ghi snapshot
+     */
+    public synchronized void rebuild() {
+        if (!isEnabled()) {
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        try {
+            List<AiEmbedding> rows = aiEmbeddingService.findAllNotDeleted();
+            boolean int8 = isInt8Mode();
+            HnswIndex index = int8 ? null : new HnswIndex(dimensions, m, efConstruction);
+            Int8VectorIndex quantized = int8 ? new Int8VectorIndex(dimensions, rows.size(), int8Scorer) : null;
+            List<AiEmbedding> entries = new ArrayList<>(rows.size());
+            List<float[]> vectors = new ArrayList<>(rows.size());
+            Map<UUID, Integer> nodeById = new HashMap<>();
+
+            for (AiEmbedding row : rows) {
+                float[] vector = row.getEmbedding();
+                if (vector == null || vector.length != dimensions) {
+                    continue;
+                }
+                int node = int8 ? quantized.add(vector) : index.add(vector);
+                entries.add(node, toEntry(row));
+                vectors.add(vector);
+                nodeById.put(row.getId(), node);
+            }
+
+            EmbeddingSnapshot written = writeSnapshot(entries, vectors);
+            IndexState built;
+            if (int8) {
+                // Rerank đọc float32 từ snapshot vừa ghi (page cache), chỉ giữ trên heap khi tắt snapshot
+                FullPrecisionVectors fullPrecision = written != null
+                    ? new FullPrecisionVectors(written, new ArrayList<>())
+                    : new FullPrecisionVectors(null, vectors);
+                built = new IndexState(quantized, fullPrecision, entries, nodeById);
+            } else {
+                built = new IndexState(index, entries, nodeById);
+            }
+            state = built;
+            System.out.println("[InMemoryVectorIndexService] ✅ " + describe(built) + " built: " + built.size()
+                + " vectors in " + (System.currentTimeMillis() - startTime) + "ms");
+        } catch (Exception e) {
+            // Giữ nguyên index cũ nếu rebuild lỗi, VectorSearchService sẽ fallback về pgvector khi chưa sẵn sàng
+            System.err.println("[InMemoryVectorIndexService] ❌ Lỗi khi build HNSW index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Định kỳ đồng bộ lại với database (phòng trường hợp instance khác ghi thêm dữ liệu)
+     */
+    @Scheduled(
+        initialDelayString = "${vector-search.hnsw.resync-interval-ms:900000}",
+        fixedDelayString = "${vector-search.hnsw.resync-interval-ms:900000}"
+    )
+    public void scheduledResync() {
+        // rebuild() tự bỏ qua khi mode không dùng index bộ nhớ (không load cả bảng kèm vector qua JPA)
+        rebuild();
+    }
+
+    /**
+     * Thêm các embedding vừa bulk insert vào index hiện tại (một lần swap state cho cả lô)
+     * Chưa có index (chưa build lần nào) thì bỏ qua: lần đồng bộ thấy index chưa sẵn sàng sẽ rebuild()
+     */
+    public synchronized void addAll(List<AiEmbedding> embeddings) {
+        IndexState current = state;
+        if (current == null || embeddings.isEmpty()) {
+            return;
+        }
+        if (current.index == null && current.quantized == null) {
+            // Đang phục vụ từ snapshot, index build nền: giữ lại, buildFromSnapshot() thêm vào sau khi swap
+            current.pendingAdds.addAll(embeddings);
+            return;
+        }
+        List<AiEmbedding> entries = new ArrayList<>(current.entries);
+        Map<UUID, Integer> nodeById = new HashMap<>(current.nodeById);
+        List<float[]> appended = current.quantized != null ? new ArrayList<>(current.fullPrecision.appended) : null;
+        for (AiEmbedding embedding : embeddings) {
+            float[] vector = embedding.getEmbedding();
+            if (vector == null || vector.length != dimensions || nodeById.containsKey(embedding.getId())) {
+                continue;
+            }
+            int node;
+            if (current.quantized != null) {
+                appended.add(vector);
+                node = current.quantized.add(vector);
+            } else {
+                node = current.index.add(vector);
+            }
+            entries.add(node, toEntry(embedding));
+            nodeById.put(embedding.getId(), node);
+        }
+        IndexState next = current.quantized != null
+            ? new IndexState(current.quantized,
+                new FullPrecisionVectors(current.fullPrecision.snapshot, appended), entries, nodeById)
+            : new IndexState(current.index, entries, nodeById);
+        next.removed.addAll(current.removed);
+        state = next;
+    }
+
+    /**
+     * Gỡ các embedding vừa soft delete khỏi kết quả tìm kiếm
+     */
+    // synchronized: không chen vào giữa lúc buildFromSnapshot() chép removed / pendingAdds và swap state,
+    // nếu không bản ghi soft delete ngay lúc swap sẽ lại xuất hiện trong kết quả
+    public synchronized void removeAll(Collection<UUID> ids) {
+        IndexState current = state;
+        if (current == null || ids.isEmpty()) {
+            return;
+        }
+        current.pendingAdds.removeIf(pendingAdd -> ids.contains(pendingAdd.getId()));
+        for (UUID id : ids) {
+            Integer node = current.nodeById.get(id);
+            if (node != null && current.removed.add(id)) {
+                markDeleted(current, node);
+            }
+        }
+    }
+
+    private static void markDeleted(IndexState target, int node) {
+        if (target.index != null) {
+            target.index.markDeleted(node);
+        } else if (target.quantized != null) {
+            target.quantized.markDeleted(node);
+        }
+    }
+
+    /**
+     * Tìm top-K embeddings gần nhất với query vector
+     */
+    public List<ScoredEmbedding> search(float[] queryEmbedding, int topK) {
+        IndexState current = state;
+        if (current == null) {
+            return List.of();
+        }
+        return search(current, queryEmbedding, topK);
+    }
+
+    /**
+     * Tìm top-K cho nhiều query trên cùng một trạng thái index, kết quả theo thứ tự đầu vào
+     * (index snapshot thuần: quét ma trận một lần cho tất cả query)
+     */
+    public List<List<ScoredEmbedding>> searchBatch(List<float[]> queryEmbeddings, int topK) {
+        IndexState current = state;
+        List<List<ScoredEmbedding>> results = new ArrayList<>(queryEmbeddings.size());
+        if (current == null) {
+            queryEmbeddings.forEach(query -> results.add(List.of()));
+            return results;
+        }
+        if (current.index == null && current.quantized == null) {
+            for (List<HnswIndex.Neighbor> neighbors : flatSearch(current, queryEmbeddings, topK)) {
+                results.add(toResults(current, neighbors));
+            }
+            return results;
+        }
+        for (float[] query : queryEmbeddings) {
+            results.add(search(current, query, topK));
+        }
+        return results;
+    }
+
+    private List<ScoredEmbedding> search(IndexState current, float[] queryEmbedding, int topK) {
+        List<HnswIndex.Neighbor> neighbors;
+        if (current.index != null) {
+            neighbors = current.index.search(queryEmbedding, topK, efSearch);
+        } else if (current.quantized != null) {
+            neighbors = current.quantized.search(queryEmbedding, topK, rerankCandidates, current.fullPrecision);
+        } else {
+            neighbors = flatSearch(current, queryEmbedding, topK);
+        }
+        return toResults(current, neighbors);
+    }
+
+    private List<ScoredEmbedding> toResults(IndexState current, List<HnswIndex.Neighbor> neighbors) {
+        List<ScoredEmbedding> results = new ArrayList<>(neighbors.size());
+        for (HnswIndex.Neighbor neighbor : neighbors) {
+            // Node được addAll() sau khi lấy snapshot này thì chưa có entry tương ứng
+            if (neighbor.node() < current.entries.size()) {
+                results.add(ScoredEmbedding.of(example(current, neighbor.node()), neighbor.similarity(),
+                    vector(current, neighbor.node())));
+            }
+        }
+        return results;
+    }
+
+    private KnowledgeBaseExample example(IndexState current, int node) {
+        return current.examples.computeIfAbsent(node, n -> KnowledgeBaseExample.from(current.entries.get(n)));
+    }
+
+    /**
+     * Vector của node theo từng loại index (dùng cho MMR và similarity của kết quả BM25)
+     */
+    private float[] vector(IndexState current, int node) {
+        if (current.index != null) {
+            return current.index.vector(node);
+        }
+        if (current.quantized != null) {
+            // Bản int8 giải mã đủ chính xác để so độ trùng lặp, không cần đọc float32 từ snapshot
+            return current.quantized.dequantize(node);
+        }
+        return node < current.snapshot.count() ? current.snapshot.vector(node) : null;
+    }
+
+    /**
+     * Hybrid retrieval: top ứng viên từ vector search và từ BM25 (question + keywords),
+     * gộp bằng reciprocal-rank fusion: score(d) = Σ 1 / (rrfK + rank(d))
+     *
+     * @param queryText Câu hỏi gốc (cho BM25)
+     * @param queryEmbedding Embedding của câu hỏi (null = chỉ dùng BM25)
+     * @param topK Số kết quả trả về
+     * @param candidates Số ứng viên lấy từ mỗi nguồn trước khi fusion
+     * @param rrfK Hằng số RRF (thường 60), càng lớn thì chênh lệch giữa các hạng càng nhỏ
+     */
+    public List<ScoredEmbedding> hybridSearch(String queryText, float[] queryEmbedding, int topK, int candidates, int rrfK) {
+        IndexState current = state;
+        if (current == null || topK <= 0) {
+            return List.of();
+        }
+        Map<UUID, Double> fused = new LinkedHashMap<>();
+        Map<UUID, ScoredEmbedding> byId = new HashMap<>();
+
+        if (queryEmbedding != null) {
+            List<ScoredEmbedding> vectorHits = search(current, queryEmbedding, candidates);
+            for (int rank = 0; rank < vectorHits.size(); rank++) {
+                ScoredEmbedding hit = vectorHits.get(rank);
+                byId.put(hit.example().id(), hit);
+                fused.merge(hit.example().id(), 1.0 / (rrfK + rank + 1), Double::sum);
+            }
+        }
+
+        List<Bm25Index.Hit> keywordHits = keywordIndex(current).search(queryText, candidates + current.removed.size());
+        int rank = 0;
+        for (Bm25Index.Hit hit : keywordHits) {
+            AiEmbedding entry = current.entries.get(hit.doc());
+            if (current.removed.contains(entry.getId())) {
+                continue;
+            }
+            if (rank >= candidates) {
+                break;
+            }
+            if (!byId.containsKey(entry.getId())) {
+                // Chỉ khớp từ khóa: tính cosine similarity để ngưỡng min-similarity vẫn áp dụng được
+                float[] vector = vector(current, hit.doc());
+                double similarity = queryEmbedding != null
+                    ? MaximalMarginalRelevance.cosine(queryEmbedding, vector)
+                    : 0.0;
+                byId.put(entry.getId(), ScoredEmbedding.of(example(current, hit.doc()), similarity, vector));
+            }
+            fused.merge(entry.getId(), 1.0 / (rrfK + rank + 1), Double::sum);
+            rank++;
+        }
+
+        List<Map.Entry<UUID, Double>> ranked = new ArrayList<>(fused.entrySet());
+        ranked.sort(Map.Entry.<UUID, Double>comparingByValue().reversed());
+        // Chuẩn hóa RRF về [0, 1] (hạng 1 ở cả hai nguồn = 1) để MMR dùng chung thang điểm
+        double maxFused = 2.0 / (rrfK + 1);
+        List<ScoredEmbedding> results = new ArrayList<>(Math.min(topK, ranked.size()));
+        for (int i = 0; i < ranked.size() && i < topK; i++) {
+            ScoredEmbedding hit = byId.get(ranked.get(i).getKey());
+            results.add(new ScoredEmbedding(hit.example(), hit.similarity(),
+                ranked.get(i).getValue() / maxFused, hit.vector()));
+        }
+        return results;
+    }
+
+    private Bm25Index keywordIndex(IndexState current) {
+        Bm25Index keywordIndex = current.keywordIndex;
+        if (keywordIndex == null) {
+            List<String> documents = new ArrayList<>(current.entries.size());
+            for (AiEmbedding entry : current.entries) {
+                documents.add(keywordText(entry));
+            }
+            keywordIndex = new Bm25Index(documents, 1.2f, 0.75f);
+            current.keywordIndex = keywordIndex;
+        }
+        return keywordIndex;
+    }
+
+    /**
+     * Text cho BM25: question + keywords (keywords là String[] khi vừa index, List khi đọc từ jsonb/snapshot)
+     */
+    private String keywordText(AiEmbedding entry) {
+        Map<String, Object> metadata = entry.getMetadata();
+        StringBuilder text = new StringBuilder();
+        Object question = metadata != null ? metadata.get("question") : null;
+        text.append(question != null ? question : entry.getContent());
+        Object keywords = metadata != null ? metadata.get("keywords") : null;
+        if (keywords instanceof Object[] array) {
+            keywords = Arrays.asList(array);
+        }
+        if (keywords instanceof Iterable<?> values) {
+            for (Object keyword : values) {
+                // Ngăn cách bằng dấu chấm để bigram không nối từ cuối keyword này với từ đầu keyword kế tiếp
+                text.append(" . ").append(keyword);
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Tìm chính xác bằng cách quét toàn bộ ma trận đã memory-map (dùng trong lúc HNSW đang build)
+     */
+    private List<HnswIndex.Neighbor> flatSearch(IndexState current, float[] query, int topK) {
+        return flatSearch(current, Collections.singletonList(query), topK).get(0);
+    }
+
+    /**
+     * Quét ma trận một lần cho nhiều query: mỗi hàng chỉ đọc từ file map một lần rồi chấm điểm với tất cả query
+     */
+    private List<List<HnswIndex.Neighbor>> flatSearch(IndexState current, List<float[]> queries, int topK) {
+        EmbeddingSnapshot snapshot = current.snapshot;
+        List<PriorityQueue<HnswIndex.Neighbor>> best = new ArrayList<>(queries.size());
+        float[] inverseQueryNorms = new float[queries.size()];
+        for (int q = 0; q < queries.size(); q++) {
+            float[] query = queries.get(q);
+            // Query sai số chiều hoặc topK <= 0 → danh sách rỗng (null = bỏ qua khi quét)
+            best.add(query == null || query.length != dimensions || topK <= 0 ? null : new PriorityQueue<>(
+                Comparator.comparingDouble(HnswIndex.Neighbor::similarity)));
+            float queryNorm = 0f;
+            if (query != null) {
+                for (float v : query) {
+                    queryNorm += v * v;
+                }
+            }
+            inverseQueryNorms[q] = queryNorm > 0 ? (float) (1.0 / Math.sqrt(queryNorm)) : 0f;
+        }
+        for (int i = 0; i < snapshot.count(); i++) {
+            if (!current.removed.isEmpty() && current.removed.contains(current.entries.get(i).getId())) {
+                continue;
+            }
+            for (int q = 0; q < queries.size(); q++) {
+                PriorityQueue<HnswIndex.Neighbor> queue = best.get(q);
+                if (queue == null) {
+                    continue;
+                }
+                float similarity = snapshot.dot(i, queries.get(q)) * current.inverseNorms[i] * inverseQueryNorms[q];
+                if (queue.size() < topK) {
+                    queue.add(new HnswIndex.Neighbor(i, similarity));
+                } else if (similarity > queue.peek().similarity()) {
+                    queue.poll();
+                    queue.add(new HnswIndex.Neighbor(i, similarity));
+                }
+            }
+        }
+        List<List<HnswIndex.Neighbor>> results = new ArrayList<>(queries.size());
+        for (PriorityQueue<HnswIndex.Neighbor> queue : best) {
+            List<HnswIndex.Neighbor> sorted = queue == null ? new ArrayList<>() : new ArrayList<>(queue);
+            sorted.sort(Comparator.comparingDouble(HnswIndex.Neighbor::similarity).reversed());
+            results.add(sorted);
+        }
+        return results;
+    }
+
+    /**
+     * Ghi snapshot rồi map lại file vừa ghi (null nếu tắt snapshot hoặc ghi lỗi)
+     */
+    private EmbeddingSnapshot writeSnapshot(List<AiEmbedding> entries, List<float[]> vectors) {
+        Path path = snapshotFile();
+        if (path == null) {
+            return null;
+        }
+        try {
+            List<byte[]> metadata = new ArrayList<>(entries.size());
+            for (AiEmbedding entry : entries) {
+                Map<String, Object> blob = new LinkedHashMap<>();
+                blob.put("id", entry.getId().toString());
+                blob.put("content", entry.getContent());
+                blob.put("metadata", entry.getMetadata());
+                metadata.add(objectMapper.writeValueAsBytes(blob));
+            }
+            EmbeddingSnapshot.write(path, dimensions, vectors, metadata);
+            System.out.println("[InMemoryVectorIndexService] 💾 Snapshot written: " + vectors.size() + " vectors → " + path);
+            return EmbeddingSnapshot.open(path);
+        } catch (Exception e) {
+            System.err.println("[InMemoryVectorIndexService] ❌ Lỗi khi ghi snapshot: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private boolean isInt8Mode() {
+        return "int8".equalsIgnoreCase(searchMode);
+    }
+
+    private String describe(IndexState built) {
+        if (built.quantized != null) {
+            return "Int8 index (" + built.quantized.scorerName() + ", "
+                + built.quantized.memoryBytes() / 1024 + "KB)";
+        }
+        return "HNSW index";
+    }
+
+    @SuppressWarnings("unchecked")
+    private AiEmbedding readEntry(byte[] json) throws IOException {
+        Map<String, Object> blob = objectMapper.readValue(json, new TypeReference<Map<String, Object>>() {});
+        return AiEmbedding.builder()
+            .id(UUID.fromString((String) blob.get("id")))
+            .content((String) blob.get("content"))
+            .metadata((Map<String, Object>) blob.get("metadata"))
+            .isDeleted(0)
+            .build();
+    }
+
+    private Path snapshotFile() {
+        return snapshotPath == null || snapshotPath.isBlank() ? null : Paths.get(snapshotPath);
+    }
+
+    /**
+     * Bản sao nhẹ của entity: vector đã nằm trong HNSW graph (bản chuẩn hóa) nên không giữ thêm bản thứ hai
+     */
+    private AiEmbedding toEntry(AiEmbedding row) {
+        return AiEmbedding.builder()
+            .id(row.getId())
+            .content(row.getContent())
+            .metadata(row.getMetadata())
+            .createdAt(row.getCreatedAt())
+            .updatedAt(row.getUpdatedAt())
+            .isDeleted(row.getIsDeleted())
+            .build();
+    }
+}
@@ -1,30 +1,64 @@
 package com.example.chatlog.service.impl;
 
+import com.example.chatlog.dto.BulkInsertResult;
 import com.example.chatlog.dto.DataExample;
+import com.example.chatlog.dto.EmbeddingInsertRow;
+import com.example.chatlog.dto.KnowledgeBaseExample;
+import com.example.chatlog.dto.KnowledgeBaseManifestEntry;
+import com.example.chatlog.entity.ai.AiEmbedding;
 import com.example.chatlog.service.AiEmbeddingService;
-import com.fasterxml.jackson.core.type.TypeReference;
+import com.example.chatlog.utils.KnowledgeBaseHash;
+import com.example.chatlog.utils.PreEmbeddedVectorStore;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
 import org.springframework.ai.embedding.EmbeddingModel;
-import org.springframework.ai.document.Document;
-import org.springframework.ai.vectorstore.VectorStore;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
-import jakarta.annotation.PostConstruct;
 
-import java.io.File;
-import java.io.InputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 @Service
 public class KnowledgeBaseIndexingService {
 
     @Autowired
-    private VectorStore vectorStore;
+    private PreEmbeddedVectorStore vectorStore;
+
+    @Autowired
+    private VectorStoreHydrationService vectorStoreHydrationService;
 
     @Autowired
     private EmbeddingModel embeddingModel;
@@ -32,197 +66,603 @@ public class KnowledgeBaseIndexingService {
     @Autowired
     private AiEmbeddingService aiEmbeddingService;
 
+    @Autowired
+    private InMemoryVectorIndexService inMemoryVectorIndexService;
+
+    @Autowired
+    private EmbeddingCatalogService embeddingCatalogService;
+
+    @Autowired
+    private ExampleLibraryService exampleLibraryService;
+
+    @Autowired
+    private PersistentEmbeddingCache persistentEmbeddingCache;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // Số câu hỏi gửi trong một request embeddings
+    @Value("${vector-search.ingest.batch-size:100}")
+    private int ingestBatchSize;
+
+    // Số request embeddings chạy song song
+    @Value("${vector-search.ingest.parallelism:4}")
+    private int ingestParallelism;
+
+    @Value("${vector-search.ingest.max-retries:3}")
+    private int ingestMaxRetries;
+
+    @Value("${vector-search.ingest.retry-backoff-ms:1000}")
+    private long ingestRetryBackoffMs;
+
+    // Sức chứa mỗi hàng đợi giữa hai stage: stage sau chậm thì stage trước bị chặn, bộ nhớ không tăng theo kích thước file
+    @Value("${vector-search.ingest.queue-capacity:500}")
+    private int ingestQueueCapacity;
+
+    // Số dòng mỗi lần bulk insert của stage ghi DB
+    @Value("${vector-search.ingest.write-batch-size:200}")
+    private int ingestWriteBatchSize;
+
+    /**
+     * Entry trong file cần embed, kèm query DSL đã serialize và hash nội dung
+     */
+    private record PendingEntry(DataExample example, String queryDslJson, String contentHash) {
+    }
+
+    /**
+     * Kết quả đồng bộ một file
+     */
+    private record FileSyncResult(int inserted, int deleted) {
+    }
+
+    // Đánh dấu hết dữ liệu trên hàng đợi (so sánh theo tham chiếu)
+    private static final PendingEntry END_OF_ENTRIES = new PendingEntry(null, null, null);
+    private static final EmbeddingInsertRow END_OF_ROWS = new EmbeddingInsertRow(null, null, null, null);
+
+    private static final int STAGE_COUNT = 3;
+
+    /**
+     * Thống kê một stage của pipeline: số phần tử và thời gian thực sự xử lý (không tính thời gian chờ hàng đợi)
+     * Lũy kế qua Micrometer (kb.ingest.items / kb.ingest.busy), lần đồng bộ hiện tại qua getProgress()
+     */
+    private static final class StageStats {
+
+        private final Counter itemCounter;
+        private final Timer busyTimer;
+        private final AtomicLong runItems = new AtomicLong();
+        private final AtomicLong runBusyNanos = new AtomicLong();
+
+        private StageStats(MeterRegistry meterRegistry, String stage) {
+            this.itemCounter = Counter.builder("kb.ingest.items").tag("stage", stage).register(meterRegistry);
+            this.busyTimer = Timer.builder("kb.ingest.busy").tag("stage", stage).register(meterRegistry);
+        }
+
+        void record(int items, long busyNanos) {
+            itemCounter.increment(items);
+            busyTimer.record(busyNanos, TimeUnit.NANOSECONDS);
+            runItems.addAndGet(items);
+            runBusyNanos.addAndGet(busyNanos);
+        }
+
+        void reset() {
+            runItems.set(0);
+            runBusyNanos.set(0);
+        }
+
+        Map<String, Object> snapshot() {
+            long items = runItems.get();
+            long busyMs = TimeUnit.NANOSECONDS.toMillis(runBusyNanos.get());
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            snapshot.put("items", items);
+            snapshot.put("busyMs", busyMs);
+            // Stage embed chạy nhiều lô song song: đây là throughput của một luồng
+            snapshot.put("itemsPerSecond", busyMs > 0 ? items * 1000 / busyMs : 0);
+            return snapshot;
+        }
+    }
+
+    private StageStats parseStats;
+    private StageStats embedStats;
+    private StageStats persistStats;
+    private volatile BlockingQueue<PendingEntry> parsedQueue;
+    private volatile BlockingQueue<EmbeddingInsertRow> embeddedQueue;
+
+    public enum IndexingStatus { PENDING, RUNNING, COMPLETED, FAILED }
+
+    // Tiến độ của lần đồng bộ gần nhất (đọc từ health indicator readiness)
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final AtomicBoolean rerunRequested = new AtomicBoolean(false);
+    private final AtomicInteger entriesToEmbed = new AtomicInteger();
+    private final AtomicInteger entriesEmbedded = new AtomicInteger();
+    private volatile IndexingStatus status = IndexingStatus.PENDING;
+    private volatile String currentFile;
+    private volatile OffsetDateTime startedAt;
+    private volatile OffsetDateTime finishedAt;
+    private volatile String lastError;
+    // File đồng bộ lỗi trong lần chạy hiện tại / gần nhất → thông báo lỗi
+    private final Map<String, String> failedFiles = new ConcurrentHashMap<>();
+
+    // Thời gian từng stage của pipeline và độ đầy của hai hàng đợi giữa các stage
     @PostConstruct
-    @Transactional("secondaryTransactionManager")  // BỌC TOÀN BỘ PHƯƠNG THỨC TRONG TRANSACTION PHỤ
+    public void registerMetrics() {
+        parseStats = new StageStats(meterRegistry, "parse");
+        embedStats = new StageStats(meterRegistry, "embed");
+        persistStats = new StageStats(meterRegistry, "persist");
+        meterRegistry.gauge("kb.ingest.queue.size", Tags.of("queue", "parsed"), this,
+            service -> queueSize(service.parsedQueue));
+        meterRegistry.gauge("kb.ingest.queue.size", Tags.of("queue", "embedded"), this,
+            service -> queueSize(service.embeddedQueue));
+    }
+
+    /**
+     * Đồng bộ kho tri thức trên thread nền sau khi ứng dụng khởi động xong, không chặn việc nhận request
+     * Readiness do KnowledgeBaseHealthIndicator quyết định dựa trên trạng thái ở đây
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void startBackgroundIndexing() {
+        Thread indexer = new Thread(() -> {
+            // Nạp vector store từ DB trước (phục vụ được ngay), sau đó đồng bộ chỉ cập nhật phần thay đổi
+            vectorStoreHydrationService.hydrate();
+            indexKnowledgeBase();
+        }, "kb-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    /**
+     * Đồng bộ kho tri thức với database; nếu đang có lần đồng bộ khác chạy thì đánh dấu để chạy lại ngay sau đó
+     * (file thay đổi giữa chừng không bị bỏ sót)
+     */
     public void indexKnowledgeBase() {
+        rerunRequested.set(true);
+        while (rerunRequested.get() && running.compareAndSet(false, true)) {
+            rerunRequested.set(false);
+            status = IndexingStatus.RUNNING;
+            startedAt = OffsetDateTime.now();
+            finishedAt = null;
+            lastError = null;
+            failedFiles.clear();
+            entriesToEmbed.set(0);
+            entriesEmbedded.set(0);
+            parseStats.reset();
+            embedStats.reset();
+            persistStats.reset();
+            try {
+                syncKnowledgeBase();
+                status = IndexingStatus.COMPLETED;
+            } catch (Exception e) {
+                lastError = e.getMessage();
+                status = IndexingStatus.FAILED;
+                System.err.println("❌ Đồng bộ kho tri thức thất bại: " + e.getMessage());
+                e.printStackTrace();
+            } finally {
+                currentFile = null;
+                finishedAt = OffsetDateTime.now();
+                running.set(false);
+            }
+        }
+    }
+
+    public IndexingStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * Tiến độ đồng bộ hiện tại / gần nhất
+     */
+    public Map<String, Object> getProgress() {
+        Map<String, Object> progress = new LinkedHashMap<>();
+        progress.put("status", status);
+        progress.put("currentFile", currentFile);
+        progress.put("entriesToEmbed", entriesToEmbed.get());
+        progress.put("entriesEmbedded", entriesEmbedded.get());
+        progress.put("startedAt", String.valueOf(startedAt));
+        progress.put("finishedAt", String.valueOf(finishedAt));
+        Map<String, Object> stages = new LinkedHashMap<>();
+        stages.put("parse", parseStats.snapshot());
+        stages.put("embed", embedStats.snapshot());
+        stages.put("persist", persistStats.snapshot());
+        progress.put("stages", stages);
+        progress.put("parsedQueue", queueSize(parsedQueue));
+        progress.put("embeddedQueue", queueSize(embeddedQueue));
+        if (lastError != null) {
+            progress.put("error", lastError);
+        }
+        if (!failedFiles.isEmpty()) {
+            progress.put("failedFiles", new LinkedHashMap<>(failedFiles));
+        }
+        return progress;
+    }
+
+    private void syncKnowledgeBase() throws IOException {
         System.out.println("🚀 Bắt đầu quá trình vector hóa kho tri thức và lưu vào Database...");
 
-        String[] knowledgeBaseFiles = {
-            "fortigate_queries_full.json"
-        };
         ObjectMapper objectMapper = new ObjectMapper();
-        List<Document> documents = new ArrayList<>();
         int totalSaved = 0;
+        int totalDeleted = 0;
 
-        for (String fileName : knowledgeBaseFiles) {
-            try {
-                ClassPathResource resource = new ClassPathResource(fileName);
-                InputStream inputStream = resource.getInputStream();
-                List<DataExample> examples = objectMapper.readValue(inputStream, new TypeReference<List<DataExample>>() {});
-
-                // Đếm số entries trong file JSON
-                int fileCount = examples.size();
-                
-                // Đếm số embeddings hiện có trong database cho file này
-                long dbCount = aiEmbeddingService.countBySourceFile(fileName);
-                
-                System.out.println("📁 File: " + fileName);
-                System.out.println("   📊 Số entries trong file: " + fileCount);
-                System.out.println("   💾 Số embeddings trong DB: " + dbCount);
-                
-                // So sánh và quyết định có cần xử lý không
-                if (fileCount == dbCount) {
-                    System.out.println("   ✅ Dữ liệu đã đồng bộ, bỏ qua file này");
-                    continue;
-                } else if (fileCount < dbCount) {
-                    System.out.println("   ⚠️ Cảnh báo: DB có nhiều records hơn file (" + dbCount + " > " + fileCount + ")");
-                    System.out.println("   💡 Có thể file đã bị xóa bớt entries. Tiếp tục xử lý...");
-                } else {
-                    int newEntriesCount = fileCount - (int)dbCount;
-                    System.out.println("   🆕 Phát hiện " + newEntriesCount + " entries mới cần thêm vào DB");
-                }
-
-                // Tính số records cần thêm vào DB
-                int newEntriesCount = fileCount - (int)dbCount;
-                
-                // Chỉ lấy các records CUỐI CÙNG của file JSON (số lượng = newEntriesCount)
-                // Ví dụ: file có 231 records, DB có 227 records → chỉ lấy 4 records cuối cùng (index 227-230)
-                List<DataExample> examplesToProcess = new ArrayList<>();
-                if (newEntriesCount > 0 && newEntriesCount <= examples.size()) {
-                    // Lấy newEntriesCount records cuối cùng
-                    int startIndex = examples.size() - newEntriesCount;
-                    examplesToProcess = examples.subList(startIndex, examples.size());
-                    System.out.println("   📋 Chỉ xử lý " + newEntriesCount + " records cuối cùng (từ index " + startIndex + " đến " + (examples.size() - 1) + ")");
-                } else if (newEntriesCount > examples.size()) {
-                    // Trường hợp đặc biệt: newEntriesCount > examples.size() (không nên xảy ra)
-                    System.out.println("   ⚠️ Cảnh báo: newEntriesCount (" + newEntriesCount + ") > examples.size() (" + examples.size() + "), xử lý tất cả");
-                    examplesToProcess = examples;
-                } else {
-                    // newEntriesCount <= 0, không cần xử lý
-                    System.out.println("   ℹ️ Không có records mới cần xử lý");
-                    examplesToProcess = new ArrayList<>();
-                }
+        // Load catalog một lần (GROUP BY source_file), các lần đếm sau đọc từ bộ nhớ
+        embeddingCatalogService.refresh();
 
-                // Chỉ xử lý các entries cuối cùng chưa có trong database
-                int processedCount = 0;
-                for (DataExample example : examplesToProcess) {
-                    if (example.getQuestion() != null && example.getQuery() != null) {
-                        // Kiểm tra xem embedding đã tồn tại chưa - bỏ qua nếu đã tồn tại
-                        // Check này để tránh tạo embedding không cần thiết
-                        if (aiEmbeddingService.existsByContent(example.getQuestion())) {
-                            continue; // Bỏ qua nếu đã tồn tại
-                        }
-                        
-                        processedCount++;
-                        
-                        // 🔧 Chuyển JsonNode thành Object rồi serialize thành JSON string
-                        Object queryDslObj = objectMapper.treeToValue(example.getQuery(), Object.class);
-                        String queryDslJson = objectMapper.writeValueAsString(queryDslObj);
-                        
-                        // Tạo embedding cho câu hỏi
-                        float[] embedding = null;
-                        if (embeddingModel != null) {
-                            try {
-                                embedding = embeddingModel.embed(example.getQuestion());
-                            } catch (Exception e) {
-                                System.err.println("❌ Lỗi tạo embedding cho: " + example.getQuestion());
-                                e.printStackTrace();
-                            }
-                        }
-
-                        // Chuẩn bị metadata
-                        Map<String, Object> metadata = new HashMap<>();
-                        metadata.put("question", example.getQuestion());
-                        metadata.put("query_dsl", queryDslJson);
-                        metadata.put("source_file", fileName);
-                        metadata.put("keywords", example.getKeywords());
-
-                        // Lưu embedding vào database - saveEmbedding() sẽ tự check duplicate
-                        // saveEmbedding() sử dụng WHERE NOT EXISTS trong SQL nên an toàn với race condition
-                        if (embedding != null) {
-                            // Convert float[] to PostgreSQL vector format: "[0.1,0.2,0.3,...]"
-                            StringBuilder sb = new StringBuilder("[");
-                            for (int i = 0; i < embedding.length; i++) {
-                                if (i > 0) sb.append(",");
-                                sb.append(embedding[i]);
-                            }
-                            sb.append("]");
-                            String embeddingString = sb.toString();
-                            
-                            // Kiểm tra xem record có tồn tại trước khi save không
-                            boolean existedBefore = aiEmbeddingService.existsByContent(example.getQuestion());
-                            
-                            // Lưu thời gian trước khi save để kiểm tra xem record có phải mới không
-                            java.time.OffsetDateTime beforeSave = java.time.OffsetDateTime.now().minusSeconds(1);
-                            
-                            // Gọi saveEmbedding() - method này sẽ tự check duplicate bằng WHERE NOT EXISTS
-                            // Nếu record đã tồn tại, method sẽ return existing record (với createdAt cũ)
-                            // Nếu record mới, method sẽ insert và return new record (với createdAt mới)
-                            com.example.chatlog.entity.ai.AiEmbedding savedEmbedding = aiEmbeddingService.saveEmbedding(
-                                example.getQuestion(),
-                                embeddingString,
-                                metadata
-                            );
-                            
-                            // Kiểm tra xem record có phải là record mới không
-                            // Cách 1: Nếu trước đó không tồn tại và sau đó tồn tại, thì là record mới
-                            // Cách 2: Kiểm tra createdAt - record mới sẽ có createdAt gần với thời gian hiện tại
-                            java.time.OffsetDateTime afterSave = java.time.OffsetDateTime.now().plusSeconds(1);
-                            boolean isNewRecord = false;
-                            
-                            if (!existedBefore) {
-                                // Nếu trước đó không tồn tại, kiểm tra createdAt để đảm bảo là record mới
-                                if (savedEmbedding.getCreatedAt() != null && 
-                                    savedEmbedding.getCreatedAt().isAfter(beforeSave) && 
-                                    savedEmbedding.getCreatedAt().isBefore(afterSave)) {
-                                    isNewRecord = true;
-                                }
-                            }
-                            // Nếu existedBefore = true, thì chắc chắn không phải record mới
-                            
-                            if (isNewRecord) {
-                                // Chỉ tăng totalSaved và add document nếu thực sự insert mới
-                                totalSaved++;
-                                
-                                // Chỉ add document vào vectorStore nếu thực sự insert mới vào DB
-                                // SimpleVectorStore chỉ là in-memory cache, không lưu vào DB
-                                Document doc = new Document(
-                                    example.getQuestion(),
-                                    metadata
-                                );
-                                documents.add(doc);
-                            }
-                        }
-                    }
-                }
-                
-                System.out.println("   ✅ Đã xử lý " + processedCount + " entries mới từ file " + fileName);
-                
+        List<String> sourceFiles = exampleLibraryService.sourceFiles();
+        for (String fileName : sourceFiles) {
+            currentFile = fileName;
+            try {
+                FileSyncResult result = syncFile(fileName, objectMapper);
+                totalSaved += result.inserted();
+                totalDeleted += result.deleted();
             } catch (Exception e) {
-                System.err.println("❌ Lỗi khi đọc file " + fileName + ": " + e.getMessage());
+                failedFiles.put(fileName, String.valueOf(e.getMessage()));
+                System.err.println("❌ Lỗi khi đồng bộ file " + fileName + ": " + e.getMessage());
                 e.printStackTrace();
             }
         }
 
-        // Đưa documents vào Vector Store (trong bộ nhớ)
-        if (!documents.isEmpty()) {
-            vectorStore.add(documents);
-        }
-        
+        totalDeleted += softDeleteRemovedFiles(sourceFiles);
+
         long finalCount = aiEmbeddingService.countAllNotDeleted();
+
+        // Index bộ nhớ đã được cập nhật tăng dần (addAll / removeAll) trong lúc đồng bộ; chỉ build lại toàn bộ khi
+        // chưa có index hoặc số bản ghi lệch database (snapshot cũ từ lần chạy trước, instance khác ghi thêm)
+        if (inMemoryVectorIndexService.isEnabled()
+            && (!inMemoryVectorIndexService.isReady() || inMemoryVectorIndexService.activeSize() != finalCount)) {
+            inMemoryVectorIndexService.rebuild();
+        }
+
         System.out.println("\n📊 === KẾT QUẢ TỔNG HỢP ===");
         System.out.println("✅ Đã thêm " + totalSaved + " embeddings mới vào Database");
+        System.out.println("🗑️ Đã soft delete " + totalDeleted + " embeddings không còn trong file");
         System.out.println("📊 Tổng số embeddings hiện tại trong DB: " + finalCount);
+        System.out.println("⏱️ Pipeline: parse " + parseStats.snapshot() + " | embed " + embedStats.snapshot()
+            + " | persist " + persistStats.snapshot());
+        if (!failedFiles.isEmpty()) {
+            // Các file khác vẫn được đồng bộ; lần chạy bị đánh dấu FAILED để progress / health thấy được
+            throw new IllegalStateException("Đồng bộ lỗi " + failedFiles.size() + " file: " + failedFiles.keySet());
+        }
         System.out.println("🎉 Hoàn thành quá trình đồng bộ!");
     }
 
-    public List<DataExample> getExampleLibrary() {
-        List<DataExample> exampleLibrary = new ArrayList<>();
-        String[] knowledgeBaseFiles = {
-            "fortigate_queries_full.json"
-        };
-        
-        ObjectMapper objectMapper = new ObjectMapper();
-        for (String fileName : knowledgeBaseFiles) {
+    /**
+     * Đồng bộ một file qua pipeline 3 stage nối bằng hàng đợi có giới hạn:
+     * parse (đọc tuần tự từng entry, hash, bỏ entry đã có trong DB) → embed (theo lô, tối đa `parallelism` lô cùng lúc)
+     * → persist (bulk insert theo lô). Stage nào lỗi thì dừng cả pipeline
+     *
+     * Chỉ khi cả file đã được đọc trọn vẹn mới soft delete bản ghi có hash không còn trong file
+     * (file ghi dở / lỗi cú pháp không làm mất dữ liệu)
+     */
+    private FileSyncResult syncFile(String fileName, ObjectMapper objectMapper) throws Exception {
+        // Manifest trong DB: hash → id; hash trùng trong DB (bản ghi lặp) coi là thừa
+        Map<String, UUID> dbIds = new HashMap<>();
+        List<UUID> staleIds = new ArrayList<>();
+        for (KnowledgeBaseManifestEntry entry : aiEmbeddingService.loadManifest(fileName)) {
+            if (dbIds.putIfAbsent(entry.contentHash(), entry.id()) != null) {
+                staleIds.add(entry.id());
+            }
+        }
+        System.out.println("📁 File: " + fileName);
+        System.out.println("   💾 Số embeddings trong DB: " + (dbIds.size() + staleIds.size()));
+
+        int capacity = Math.max(1, ingestQueueCapacity);
+        BlockingQueue<PendingEntry> parsed = new ArrayBlockingQueue<>(capacity);
+        BlockingQueue<EmbeddingInsertRow> embedded = new ArrayBlockingQueue<>(capacity);
+        parsedQueue = parsed;
+        embeddedQueue = embedded;
+        Set<String> fileHashes = new HashSet<>();
+        AtomicInteger pending = new AtomicInteger();
+        AtomicInteger inserted = new AtomicInteger();
+        AtomicInteger skipped = new AtomicInteger();
+
+        ExecutorService stages = Executors.newFixedThreadPool(STAGE_COUNT, daemonThreads("kb-ingest-stage"));
+        ExecutorService embedWorkers = Executors.newFixedThreadPool(Math.max(1, ingestParallelism),
+            daemonThreads("kb-ingest-embed"));
+        try {
+            CompletionService<Void> pipeline = new ExecutorCompletionService<>(stages);
+            pipeline.submit(() -> {
+                parseStage(fileName, objectMapper, dbIds.keySet(), fileHashes, pending, parsed);
+                return null;
+            });
+            pipeline.submit(() -> {
+                embedStage(fileName, parsed, embedded, embedWorkers);
+                return null;
+            });
+            pipeline.submit(() -> {
+                persistStage(embedded, inserted, skipped);
+                return null;
+            });
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                try {
+                    pipeline.take().get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception cause ? cause : e;
+                }
+            }
+        } finally {
+            // Stage còn lại đang chặn trên hàng đợi bị interrupt
+            stages.shutdownNow();
+            embedWorkers.shutdownNow();
+            persistentEmbeddingCache.flush();
+            parsedQueue = null;
+            embeddedQueue = null;
+        }
+
+        // File đã đọc trọn vẹn: hash có trong DB nhưng không còn trong file → soft delete
+        for (Map.Entry<String, UUID> entry : dbIds.entrySet()) {
+            if (!fileHashes.contains(entry.getKey())) {
+                staleIds.add(entry.getValue());
+            }
+        }
+        int deleted = aiEmbeddingService.softDeleteByIds(staleIds, fileName);
+        removeFromVectorStore(staleIds);
+
+        System.out.println("   📊 Số entries trong file: " + fileHashes.size());
+        System.out.println("   🆕 Mới/đã sửa: " + pending.get() + " | 🗑️ Đã xóa/đã sửa: " + deleted);
+        if (pending.get() == 0 && deleted == 0) {
+            System.out.println("   ✅ Dữ liệu đã đồng bộ");
+        } else {
+            System.out.println("   💾 Bulk insert: " + inserted.get() + " inserted, " + skipped.get() + " skipped");
+        }
+        return new FileSyncResult(inserted.get(), deleted);
+    }
+
+    /**
+     * Stage 1: đọc file bằng Jackson streaming, hash từng entry; entry chưa có trong DB được đưa sang stage embed
+     */
+    private void parseStage(String fileName, ObjectMapper objectMapper, Set<String> dbHashes, Set<String> fileHashes,
+                            AtomicInteger pending, BlockingQueue<PendingEntry> out) throws Exception {
+        try (ExampleLibraryService.ExampleReader reader = exampleLibraryService.open(fileName)) {
+            long busyStart = System.nanoTime();
+            for (DataExample example = reader.next(); example != null; example = reader.next()) {
+                if (example.getQuestion() == null || example.getQuery() == null) {
+                    continue;
+                }
+                // Hash nội dung entry (question + query DSL + keywords)
+                Object queryDslObj = objectMapper.treeToValue(example.getQuery(), Object.class);
+                String queryDslJson = objectMapper.writeValueAsString(queryDslObj);
+                String contentHash = KnowledgeBaseHash.of(example.getQuestion(), queryDslJson,
+                    example.getKeywords() != null ? Arrays.asList(example.getKeywords()) : null);
+                boolean isNew = fileHashes.add(contentHash) && !dbHashes.contains(contentHash);
+                parseStats.record(1, System.nanoTime() - busyStart);
+                if (isNew) {
+                    pending.incrementAndGet();
+                    entriesToEmbed.incrementAndGet();
+                    out.put(new PendingEntry(example, queryDslJson, contentHash));
+                }
+                busyStart = System.nanoTime();
+            }
+        }
+        out.put(END_OF_ENTRIES);
+    }
+
+    /**
+     * Stage 2: gom entry thành lô batch-size, tối đa `parallelism` lô gọi embedding cùng lúc;
+     * đủ số lô đang chạy thì ngừng lấy từ hàng đợi → hàng đợi đầy → stage parse bị chặn
+     */
+    private void embedStage(String fileName, BlockingQueue<PendingEntry> in, BlockingQueue<EmbeddingInsertRow> out,
+                            ExecutorService workers) throws Exception {
+        int batchSize = Math.max(1, ingestBatchSize);
+        int parallelism = Math.max(1, ingestParallelism);
+        Semaphore inFlight = new Semaphore(parallelism);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        List<PendingEntry> batch = new ArrayList<>(batchSize);
+        boolean done = false;
+        while (!done) {
+            PendingEntry entry = in.take();
+            done = entry == END_OF_ENTRIES;
+            if (!done) {
+                batch.add(entry);
+            }
+            if (batch.size() >= batchSize || (done && !batch.isEmpty())) {
+                inFlight.acquire();
+                List<PendingEntry> submitted = batch;
+                batch = new ArrayList<>(batchSize);
+                workers.execute(() -> {
+                    try {
+                        embedBatch(fileName, submitted, out);
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+        }
+        // Đợi các lô đang chạy xong
+        inFlight.acquire(parallelism);
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        out.put(END_OF_ROWS);
+    }
+
+    private void embedBatch(String fileName, List<PendingEntry> batch, BlockingQueue<EmbeddingInsertRow> out)
+        throws InterruptedException {
+        long start = System.nanoTime();
+        List<float[]> embeddings = embedCached(batch.stream().map(entry -> entry.example().getQuestion()).toList());
+        List<EmbeddingInsertRow> rows = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            float[] embedding = embeddings.get(i);
+            if (embedding == null) {
+                // Không bỏ qua lặng lẽ: file lỗi thì không soft delete bản cũ của entry đã sửa
+                throw new IllegalStateException("Không tạo được embedding cho entry: " + batch.get(i).example().getQuestion());
+            }
+            DataExample example = batch.get(i).example();
+
+            // Chuẩn bị metadata
+            Map<String, Object> metadata = new HashMap<>();
+            metadata.put("question", example.getQuestion());
+            metadata.put("query_dsl", batch.get(i).queryDslJson());
+            metadata.put("source_file", fileName);
+            metadata.put("keywords", example.getKeywords());
+            metadata.put(KnowledgeBaseHash.METADATA_KEY, batch.get(i).contentHash());
+            rows.add(new EmbeddingInsertRow(UUID.randomUUID(), example.getQuestion(), embedding, metadata));
+        }
+        embedStats.record(batch.size(), System.nanoTime() - start);
+        entriesEmbedded.addAndGet(rows.size());
+        for (EmbeddingInsertRow row : rows) {
+            out.put(row);
+        }
+    }
+
+    /**
+     * Stage 3: gom dòng đã embed thành lô write-batch-size rồi bulk insert
+     * (ON CONFLICT theo source_file + content_hash bỏ qua bản đã có)
+     */
+    private void persistStage(BlockingQueue<EmbeddingInsertRow> in, AtomicInteger inserted, AtomicInteger skipped)
+        throws InterruptedException {
+        int writeBatchSize = Math.max(1, ingestWriteBatchSize);
+        List<EmbeddingInsertRow> batch = new ArrayList<>(writeBatchSize);
+        boolean done = false;
+        while (!done) {
+            EmbeddingInsertRow row = in.take();
+            done = row == END_OF_ROWS;
+            if (!done) {
+                batch.add(row);
+            }
+            if (batch.size() >= writeBatchSize || (done && !batch.isEmpty())) {
+                long start = System.nanoTime();
+                BulkInsertResult result = aiEmbeddingService.bulkInsert(batch);
+                if (inMemoryVectorIndexService.isEnabled()) {
+                    // Thêm tăng dần vào index bộ nhớ bằng vector vừa tạo, không load lại cả bảng
+                    inMemoryVectorIndexService.addAll(result.inserted().stream()
+                        .map(KnowledgeBaseIndexingService::toEntity)
+                        .toList());
+                }
+                if (vectorStoreHydrationService.isEnabled()) {
+                    for (EmbeddingInsertRow insertedRow : result.inserted()) {
+                        // Chỉ đưa vào vectorStore bản ghi thực sự insert mới vào DB, dùng luôn vector vừa tạo
+                        // SimpleVectorStore chỉ là in-memory cache, không lưu vào DB
+                        vectorStore.put(toExample(insertedRow), insertedRow.embedding());
+                    }
+                }
+                persistStats.record(batch.size(), System.nanoTime() - start);
+                inserted.addAndGet(result.insertedCount());
+                skipped.addAndGet(result.skipped());
+                batch = new ArrayList<>(writeBatchSize);
+            }
+        }
+    }
+
+    /**
+     * Thư mục kho tri thức: source_file có trong DB nhưng file đã bị xóa khỏi thư mục → soft delete toàn bộ bản ghi
+     * (chỉ xét file thực sự không còn trên đĩa, file đọc lỗi vẫn giữ nguyên)
+     */
+    private int softDeleteRemovedFiles(List<String> sourceFiles) {
+        Path directory = exampleLibraryService.getDirectory();
+        if (directory == null || !Files.isDirectory(directory)) {
+            return 0;
+        }
+        int deleted = 0;
+        for (Map.Entry<String, Long> catalogEntry : embeddingCatalogService.snapshot().entrySet()) {
+            String sourceFile = catalogEntry.getKey();
+            if (catalogEntry.getValue() == 0 || EmbeddingCatalogService.UNKNOWN_SOURCE.equals(sourceFile)
+                || sourceFiles.contains(sourceFile) || Files.exists(directory.resolve(sourceFile))) {
+                continue;
+            }
+            List<UUID> ids = aiEmbeddingService.loadManifest(sourceFile).stream()
+                .map(KnowledgeBaseManifestEntry::id)
+                .toList();
+            int removed = aiEmbeddingService.softDeleteByIds(ids, sourceFile);
+            removeFromVectorStore(ids);
+            System.out.println("   🗑️ File " + sourceFile + " đã bị xóa khỏi " + directory + ": soft delete " + removed + " embeddings");
+            deleted += removed;
+        }
+        return deleted;
+    }
+
+    /**
+     * Embed một lô: văn bản đã có trong PersistentEmbeddingCache lấy từ đĩa, chỉ phần còn thiếu mới gọi embedding API
+     * (ghi ngay vào cache: sync bị ngắt giữa chừng thì lần sau không phải trả tiền embed lại)
+     * Kết quả theo đúng thứ tự đầu vào; không có embedding model thì phần còn thiếu là null
+     */
+    private List<float[]> embedCached(List<String> texts) {
+        List<float[]> results = new ArrayList<>(persistentEmbeddingCache.lookupAll(texts));
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i) == null) {
+                missing.add(i);
+            }
+        }
+        if (missing.isEmpty() || embeddingModel == null) {
+            return results;
+        }
+        List<String> missingTexts = missing.stream().map(texts::get).toList();
+        List<float[]> vectors = embedWithRetry(missingTexts);
+        persistentEmbeddingCache.putAll(missingTexts, vectors);
+        for (int i = 0; i < vectors.size(); i++) {
+            results.set(missing.get(i), vectors.get(i));
+        }
+        return results;
+    }
+
+    /**
+     * Gọi embedding API cho một lô, retry với backoff tăng dần (rate limit 429, lỗi mạng tạm thời)
+     * Hết retry thì ném lỗi: pipeline của file dừng lại, bản ghi cũ không bị soft delete
+     */
+    private List<float[]> embedWithRetry(List<String> batch) {
+        long backoffMs = ingestRetryBackoffMs;
+        for (int attempt = 0; ; attempt++) {
             try {
-                ClassPathResource resource = new ClassPathResource(fileName);
-                InputStream inputStream = resource.getInputStream();
-                List<DataExample> examples = objectMapper.readValue(inputStream, new TypeReference<List<DataExample>>() {});
-                exampleLibrary.addAll(examples);
+                return embeddingModel.embed(batch);
             } catch (Exception e) {
-                System.err.println("❌ Lỗi khi đọc file " + fileName + ": " + e.getMessage());
+                if (attempt >= ingestMaxRetries) {
+                    System.err.println("❌ Lỗi tạo embedding cho lô " + batch.size() + " entries sau "
+                        + (attempt + 1) + " lần thử: " + e.getMessage());
+                    throw new IllegalStateException("Embedding lỗi sau " + (attempt + 1) + " lần thử: " + e.getMessage(), e);
+                }
+                System.out.println("   ⚠️ Embedding lỗi (" + e.getMessage() + "), thử lại " + (attempt + 1) + "/"
+                    + ingestMaxRetries + " sau " + backoffMs + "ms");
+                try {
+                    Thread.sleep(backoffMs);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Embedding bị ngắt trong lúc chờ retry", ie);
+                }
+                backoffMs *= 2;
             }
         }
-        return exampleLibrary;
+    }
+
+    private static int queueSize(BlockingQueue<?> queue) {
+        return queue != null ? queue.size() : 0;
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // Gỡ bản ghi vừa soft delete khỏi nơi tìm kiếm trong bộ nhớ của mode hiện tại
+    private void removeFromVectorStore(List<UUID> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        if (inMemoryVectorIndexService.isEnabled()) {
+            inMemoryVectorIndexService.removeAll(ids);
+        }
+        if (vectorStoreHydrationService.isEnabled()) {
+            vectorStore.delete(ids.stream().map(UUID::toString).toList());
+        }
+    }
+
+    private static AiEmbedding toEntity(EmbeddingInsertRow row) {
+        return AiEmbedding.builder()
+            .id(row.id())
+            .content(row.content())
+            .metadata(row.metadata())
+            .embedding(row.embedding())
+            .build();
+    }
+
+    private static KnowledgeBaseExample toExample(EmbeddingInsertRow row) {
+        Map<String, Object> metadata = row.metadata();
+        return new KnowledgeBaseExample(row.id(), (String) metadata.get("question"), null, null,
+            (String) metadata.get("query_dsl"), row.content());
     }
 }
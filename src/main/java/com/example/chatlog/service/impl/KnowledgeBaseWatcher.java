@@ -0,0 +1,134 @@
+package com.example.chatlog.service.impl;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Theo dõi thư mục kho tri thức (vector-search.knowledge-base.directory) bằng NIO WatchService
+ *
+ * Mỗi thay đổi *.json (tạo / sửa / xóa) đặt lại hẹn giờ debounce; hết thời gian debounce mà không có thay đổi mới
+ * thì chạy đồng bộ: parse lại thư viện ví dụ (swap nguyên khối), embed lại chỉ các entry đổi content hash,
+ * soft delete entry đã bị xóa rồi build lại index vector trong bộ nhớ và swap vào
+ */
+@Service
+public class KnowledgeBaseWatcher {
+
+    @Autowired
+    private ExampleLibraryService exampleLibraryService;
+
+    @Autowired
+    private KnowledgeBaseIndexingService knowledgeBaseIndexingService;
+
+    @Value("${vector-search.knowledge-base.watch:true}")
+    private boolean watchEnabled;
+
+    @Value("${vector-search.knowledge-base.debounce-ms:2000}")
+    private long debounceMs;
+
+    private final ScheduledExecutorService debouncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "kb-reload");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ScheduledFuture<?> pendingReload;
+    private volatile WatchService watchService;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        Path directory = exampleLibraryService.getDirectory();
+        if (!watchEnabled || directory == null) {
+            return;
+        }
+        if (!Files.isDirectory(directory)) {
+            System.err.println("[KnowledgeBaseWatcher] ⚠️ Thư mục kho tri thức không tồn tại: " + directory);
+            return;
+        }
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            directory.register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            System.err.println("[KnowledgeBaseWatcher] ❌ Không theo dõi được " + directory + ": " + e.getMessage());
+            return;
+        }
+        Thread watcher = new Thread(this::watchLoop, "kb-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        System.out.println("[KnowledgeBaseWatcher] 👀 Watching " + directory + " (debounce " + debounceMs + "ms)");
+    }
+
+    @PreDestroy
+    public void stop() {
+        debouncer.shutdownNow();
+        WatchService current = watchService;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException ignored) {
+                // Đang shutdown
+            }
+        }
+    }
+
+    private void watchLoop() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean relevant = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        relevant = true;
+                    } else if (event.context() instanceof Path file && file.toString().endsWith(".json")) {
+                        relevant = true;
+                    }
+                }
+                if (relevant) {
+                    scheduleReload();
+                }
+                if (!key.reset()) {
+                    System.err.println("[KnowledgeBaseWatcher] ⚠️ Thư mục kho tri thức không còn truy cập được, dừng theo dõi");
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // stop() đã đóng watch service
+        }
+    }
+
+    /**
+     * Gộp một loạt sự kiện (editor thường ghi file nhiều lần) thành một lần đồng bộ
+     */
+    private synchronized void scheduleReload() {
+        if (pendingReload != null) {
+            pendingReload.cancel(false);
+        }
+        pendingReload = debouncer.schedule(() -> {
+            System.out.println("[KnowledgeBaseWatcher] 🔄 Kho tri thức thay đổi, đồng bộ lại");
+            exampleLibraryService.reload();
+            knowledgeBaseIndexingService.indexKnowledgeBase();
+        }, debounceMs, TimeUnit.MILLISECONDS);
+    }
+}
@@ -1,17 +1,25 @@
 package com.example.chatlog.service.impl;
 
 import com.example.chatlog.service.LogApiService;
+import com.example.chatlog.utils.SearchResponseTrimmer;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.channel.ChannelOption;
 import io.netty.handler.ssl.SslContextBuilder;
+import jakarta.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.client.reactive.ClientHttpRequest;
 import org.springframework.http.client.reactive.ReactorClientHttpConnector;
 import org.springframework.stereotype.Service;
 import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
 import reactor.netty.http.client.HttpClient;
+import reactor.netty.http.client.HttpClientRequest;
+import reactor.netty.resources.ConnectionProvider;
 import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -19,33 +27,91 @@ import java.util.List;
 @Service
 public class LogApiServiceImpl implements LogApiService {
 
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
     // WebClient để giao tiếp với Elasticsearch thông qua HTTP/HTTPS
     private final WebClient webClient;
 
+    // Pool kết nối riêng cho Elasticsearch (giải phóng khi shutdown)
+    private final ConnectionProvider connectionProvider;
+
+    // Thời gian tối đa cho một request (tính cả chờ response), hết hạn thì hủy request Netty
+    private final Duration requestTimeout;
+
+    // Thêm filter_path / _source vào _search để response gửi cho LLM gọn hơn
+    private final boolean trimResponse;
+
+    // Timeout riêng cho _field_caps (chỉ đọc mapping, không nên chờ lâu như _search)
+    private final Duration fieldCapsTimeout;
+
     /**
      * Constructor khởi tạo LogApiServiceImpl với cấu hình kết nối Elasticsearch
      * Thiết lập SSL trust-all cho môi trường nội bộ và các header cần thiết
      *
+     * Pool kết nối có giới hạn (max-connections, hàng chờ pending-acquire có giới hạn và timeout) để một loạt tool call
+     * không xếp hàng vô hạn; kết nối idle / quá tuổi bị evict định kỳ. Metrics pool (reactor.netty.connection.provider.*)
+     * và latency (reactor.netty.http.client.*) ghi vào Micrometer global registry, Spring Boot gắn registry này
+     * vào /actuator/prometheus
+     *
      * @param builder WebClient.Builder từ Spring Boot
      * @param baseUrl URL của Elasticsearch server (từ application.yaml)
      * @param apiKey API key để xác thực với Elasticsearch (từ application.yaml)
+     * @param connectTimeoutMs Timeout mở kết nối TCP
+     * @param timeoutMs Timeout cho mỗi request _search
+     * @param fieldCapsTimeoutMs Timeout cho request _field_caps
+     * @param trimResponse Thu gọn response _search (filter_path, _source includes)
+     * @param pool Cấu hình pool kết nối (elastic.api.pool.*)
      */
     public LogApiServiceImpl(WebClient.Builder builder,
         @Value("${elastic.api.url}") String baseUrl,
-        @Value("${elastic.api.key}") String apiKey) {
+        @Value("${elastic.api.key}") String apiKey,
+        @Value("${elastic.api.connect-timeout-ms:5000}") int connectTimeoutMs,
+        @Value("${elastic.api.timeout-ms:30000}") long timeoutMs,
+        @Value("${elastic.api.field-caps-timeout-ms:10000}") long fieldCapsTimeoutMs,
+        @Value("${elastic.api.trim-response:true}") boolean trimResponse,
+        @Value("${elastic.api.pool.max-connections:50}") int maxConnections,
+        @Value("${elastic.api.pool.pending-acquire-max-count:200}") int pendingAcquireMaxCount,
+        @Value("${elastic.api.pool.pending-acquire-timeout-ms:10000}") long pendingAcquireTimeoutMs,
+        @Value("${elastic.api.pool.max-idle-time-ms:30000}") long maxIdleTimeMs,
+        @Value("${elastic.api.pool.max-life-time-ms:300000}") long maxLifeTimeMs,
+        @Value("${elastic.api.pool.evict-interval-ms:60000}") long evictIntervalMs,
+        @Value("${elastic.api.pool.keep-alive:true}") boolean keepAlive) {
+
+        this.requestTimeout = Duration.ofMillis(timeoutMs);
+        this.fieldCapsTimeout = Duration.ofMillis(fieldCapsTimeoutMs);
+        this.trimResponse = trimResponse;
+
+        // Pool kết nối có giới hạn: vượt max-connections thì chờ trong hàng đợi giới hạn,
+        // hàng đợi đầy hoặc chờ quá pending-acquire-timeout thì lỗi ngay thay vì treo
+        this.connectionProvider = ConnectionProvider.builder("elasticsearch")
+            .maxConnections(maxConnections)
+            .pendingAcquireMaxCount(pendingAcquireMaxCount)
+            .pendingAcquireTimeout(Duration.ofMillis(pendingAcquireTimeoutMs))
+            .maxIdleTime(Duration.ofMillis(maxIdleTimeMs))
+            .maxLifeTime(Duration.ofMillis(maxLifeTimeMs))
+            .evictInBackground(Duration.ofMillis(evictIntervalMs))
+            .metrics(true)
+            .build();
 
         // Cấu hình HTTP client với SSL trust-all (chỉ dùng cho môi trường nội bộ)
-        HttpClient httpClient = HttpClient.create().secure(ssl -> {
-            try {
-                ssl.sslContext(
-                    SslContextBuilder.forClient()
-                        .trustManager(InsecureTrustManagerFactory.INSTANCE) // Tin tương tất cả certificates
-                        .build()
-                );
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
-        });
+        HttpClient httpClient = HttpClient.create(connectionProvider)
+            .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeoutMs)
+            .option(ChannelOption.SO_KEEPALIVE, keepAlive)
+            .keepAlive(keepAlive)
+            .responseTimeout(requestTimeout) // Mặc định, từng request có thể đặt lại (xem searchAsync / getAllFieldAsync)
+            // Gom URI theo loại API để metrics không nổ cardinality theo tên index
+            .metrics(true, LogApiServiceImpl::metricsUriTag)
+            .secure(ssl -> {
+                try {
+                    ssl.sslContext(
+                        SslContextBuilder.forClient()
+                            .trustManager(InsecureTrustManagerFactory.INSTANCE) // Tin tương tất cả certificates
+                            .build()
+                    );
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
 
         // Xây dựng WebClient với cấu hình SSL và các header mặc định
         this.webClient = builder
@@ -55,6 +121,33 @@ public class LogApiServiceImpl implements LogApiService {
             .defaultHeader("Content-Type", "application/json") // Định dạng JSON
             .defaultHeader("kbn-xsrf", "true") // Header bảo mật cho Kibana
             .build();
+
+        System.out.println("[LogApiServiceImpl] 🔌 Elasticsearch pool: maxConnections=" + maxConnections
+            + ", pendingAcquireMaxCount=" + pendingAcquireMaxCount + ", timeout=" + timeoutMs + "ms");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        connectionProvider.disposeLater().block(Duration.ofSeconds(5));
+    }
+
+    // "/logs-*/_search?..." → "/_search", "/_resolve/index/logs-*" → "/_resolve" (tên index không bắt đầu bằng "_")
+    private static String metricsUriTag(String uri) {
+        int apiStart = uri.indexOf("/_");
+        if (apiStart < 0) {
+            return "/other";
+        }
+        int apiEnd = apiStart + 2;
+        while (apiEnd < uri.length() && uri.charAt(apiEnd) != '/' && uri.charAt(apiEnd) != '?') {
+            apiEnd++;
+        }
+        return uri.substring(apiStart, apiEnd);
+    }
+
+    // Đặt response timeout cho riêng request này (ghi đè giá trị mặc định của HttpClient)
+    private static void responseTimeout(ClientHttpRequest request, Duration timeout) {
+        HttpClientRequest nativeRequest = request.getNativeRequest();
+        nativeRequest.responseTimeout(timeout);
     }
 
     /**
@@ -67,13 +160,34 @@ public class LogApiServiceImpl implements LogApiService {
      */
     @Override
     public String search(String index,String body) {
-        // Gửi HTTP POST request đến Elasticsearch _search endpoint
+        return searchAsync(index, body).block(); // Chờ kết quả (blocking call)
+    }
+
+    /**
+     * Bản non-blocking của search: request chỉ được gửi khi subscribe
+     */
+    @Override
+    public Mono<String> searchAsync(String index, String body) {
+        if (!trimResponse) {
+            // Gửi HTTP POST request đến Elasticsearch _search endpoint
+            return webClient.post()
+                .uri("/" + index + "/_search") // Đường dẫn tìm kiếm của Elasticsearch
+                .bodyValue(body) // JSON query body
+                .httpRequest(request -> responseTimeout(request, requestTimeout))
+                .retrieve() // Thực hiện request
+                .bodyToMono(String.class) // Chuyển đổi response thành String
+                .timeout(requestTimeout); // Hết hạn → cancel subscription → Netty hủy request
+        }
+
+        // Thu gọn response: filter_path bỏ metadata, _source chỉ giữ cột cần thiết (xem SearchResponseTrimmer)
         return webClient.post()
-            .uri("/" + index + "/_search") // Đường dẫn tìm kiếm của Elasticsearch
-            .bodyValue(body) // JSON query body
-            .retrieve() // Thực hiện request
-            .bodyToMono(String.class) // Chuyển đổi response thành String
-            .block(); // Chờ kết quả (blocking call)
+            .uri("/" + index + "/_search?filter_path={filterPath}", SearchResponseTrimmer.FILTER_PATH)
+            .bodyValue(SearchResponseTrimmer.trimRequest(body))
+            .httpRequest(request -> responseTimeout(request, requestTimeout))
+            .retrieve()
+            .bodyToMono(String.class)
+            .timeout(requestTimeout)
+            .map(SearchResponseTrimmer::restoreEmptyHits);
     }
 
 
@@ -88,16 +202,41 @@ public class LogApiServiceImpl implements LogApiService {
      */
     @Override
     public String getAllField(String index){
-        String json = webClient
+        return getAllFieldAsync(index).block();
+    }
+
+    @Override
+    public Mono<String> getAllFieldAsync(String index) {
+        return getFieldCapsAsync(index)
+            .map(this::parseFieldNames)
+            .defaultIfEmpty("");
+    }
+
+    @Override
+    public Mono<String> getFieldCapsAsync(String index) {
+        return webClient
             .post()
             .uri("/"+index+"/_field_caps?fields=*")
+            .httpRequest(request -> responseTimeout(request, fieldCapsTimeout))
+            .retrieve()
+            .bodyToMono(String.class)
+            .timeout(fieldCapsTimeout);
+    }
+
+    @Override
+    public Mono<String> resolveIndexAsync(String index) {
+        return webClient
+            .get()
+            .uri("/_resolve/index/" + index)
+            .httpRequest(request -> responseTimeout(request, fieldCapsTimeout))
             .retrieve()
             .bodyToMono(String.class)
-            .block();
+            .timeout(fieldCapsTimeout);
+    }
 
+    private String parseFieldNames(String json) {
         try {
-            ObjectMapper mapper = new ObjectMapper();
-            JsonNode root = mapper.readTree(json);
+            JsonNode root = OBJECT_MAPPER.readTree(json);
             JsonNode fieldsNode = root.get("fields");
 
             List<String> fieldNames = new ArrayList<>();
@@ -116,4 +255,4 @@ public class LogApiServiceImpl implements LogApiService {
         }
         return "";
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,307 @@
+package com.example.chatlog.service.impl;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache embedding trên đĩa, đặt trước EmbeddingModel khi đồng bộ kho tri thức
+ *
+ * Chỉ ghi embedding của entry kho tri thức (tập có giới hạn). Query người dùng chỉ dùng QueryEmbeddingCache
+ * trong bộ nhớ: log append-only không có giới hạn / compaction nên không nhận dữ liệu không giới hạn.
+ * VectorSearchService chỉ đọc (lookupAll) để lấy vector cho MMR
+ *
+ * - Key: SHA-256(tên embedding model + số chiều + văn bản), đổi model / số chiều thì tự động miss
+ * - embeddings.log: file append-only, mỗi record = key (32 byte) + số chiều + vector float
+ * - embeddings.idx: key → offset trong log, kèm độ dài log đã được index; phần log ghi sau đó
+ *   (crash trước khi kịp ghi index) được quét lại khi khởi động, record ghi dở ở cuối bị cắt bỏ
+ *
+ * Rebuild bảng ai_embedding hay chuyển sang database khác chỉ còn đọc file, không gọi lại embedding API
+ */
+@Service
+public class PersistentEmbeddingCache {
+
+    private static final int LOG_MAGIC = 0x50454331;   // "PEC1"
+    private static final int INDEX_MAGIC = 0x50454931; // "PEI1"
+    private static final int KEY_BYTES = 32;
+    private static final int RECORD_HEADER_BYTES = KEY_BYTES + Integer.BYTES;
+
+    private final Counter hitCounter;
+    private final Counter missCounter;
+
+    // Để trống để tắt cache trên đĩa
+    @Value("${vector-search.embedding-store.directory:}")
+    private String directory;
+
+    @Value("${spring.ai.openai.embedding.options.model:text-embedding-3-small}")
+    private String embeddingModelName;
+
+    @Value("${spring.ai.openai.embedding.options.dimensions:${vector-search.hnsw.dimensions:1536}}")
+    private int dimensions;
+
+    private final Map<String, Long> offsets = new ConcurrentHashMap<>();
+    private volatile FileChannel log;
+    private Path logPath;
+    private Path indexPath;
+    private long unindexedAppends;
+
+    public PersistentEmbeddingCache(MeterRegistry meterRegistry) {
+        this.hitCounter = Counter.builder("embedding.store.requests")
+            .tag("result", "hit").register(meterRegistry);
+        this.missCounter = Counter.builder("embedding.store.requests")
+            .tag("result", "miss").register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void init() {
+        if (directory == null || directory.isBlank()) {
+            return;
+        }
+        Path dir = Paths.get(directory);
+        logPath = dir.resolve("embeddings.log");
+        indexPath = dir.resolve("embeddings.idx");
+        long start = System.currentTimeMillis();
+        try {
+            Files.createDirectories(dir);
+            FileChannel channel = FileChannel.open(logPath,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.size() == 0) {
+                writeFully(channel, ByteBuffer.allocate(Integer.BYTES).putInt(LOG_MAGIC).flip(), 0);
+            } else if (readFully(channel, Integer.BYTES, 0).getInt() != LOG_MAGIC) {
+                System.err.println("[PersistentEmbeddingCache] ❌ " + logPath + " không phải embedding log, tắt cache trên đĩa");
+                channel.close();
+                return;
+            }
+            long scanFrom = loadIndex(channel.size());
+            int recovered = scanLog(channel, scanFrom);
+            log = channel;
+            System.out.println("[PersistentEmbeddingCache] ✅ " + offsets.size() + " embeddings trên đĩa ("
+                + recovered + " khôi phục từ log) trong " + (System.currentTimeMillis() - start) + "ms");
+        } catch (IOException e) {
+            System.err.println("[PersistentEmbeddingCache] ❌ Không mở được " + logPath + ": " + e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        FileChannel channel = log;
+        if (channel == null) {
+            return;
+        }
+        flush();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Đang shutdown
+        }
+    }
+
+    public boolean isEnabled() {
+        return log != null;
+    }
+
+    public int size() {
+        return offsets.size();
+    }
+
+    /**
+     * @return Vector theo thứ tự đầu vào, null với văn bản chưa có trên đĩa
+     */
+    public List<float[]> lookupAll(List<String> texts) {
+        List<float[]> results = new ArrayList<>(texts.size());
+        FileChannel channel = log;
+        for (String text : texts) {
+            if (channel == null) {
+                results.add(null);
+                continue;
+            }
+            Long offset = offsets.get(key(text));
+            float[] vector = offset != null ? read(channel, offset) : null;
+            (vector != null ? hitCounter : missCounter).increment();
+            results.add(vector);
+        }
+        return results;
+    }
+
+    /**
+     * Ghi thêm vector mới vào cuối log (bỏ qua phần tử null và key đã có)
+     */
+    public synchronized void putAll(List<String> texts, List<float[]> vectors) {
+        FileChannel channel = log;
+        if (channel == null) {
+            return;
+        }
+        try {
+            long position = channel.size();
+            for (int i = 0; i < texts.size(); i++) {
+                float[] vector = vectors.get(i);
+                String key = key(texts.get(i));
+                if (vector == null || offsets.containsKey(key)) {
+                    continue;
+                }
+                ByteBuffer bytes = ByteBuffer.allocate(RECORD_HEADER_BYTES + vector.length * Float.BYTES);
+                bytes.put(HexFormat.of().parseHex(key)).putInt(vector.length);
+                bytes.asFloatBuffer().put(vector);
+                bytes.position(bytes.capacity()).flip();
+                writeFully(channel, bytes, position);
+                offsets.put(key, position);
+                position += bytes.capacity();
+                unindexedAppends++;
+            }
+        } catch (IOException e) {
+            System.err.println("[PersistentEmbeddingCache] ❌ Lỗi khi ghi embedding log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * fsync log rồi ghi lại file index (file tạm + rename); gọi sau mỗi lần đồng bộ và khi shutdown
+     */
+    public synchronized void flush() {
+        FileChannel channel = log;
+        if (channel == null || unindexedAppends == 0) {
+            return;
+        }
+        Path tmp = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        try {
+            channel.force(false);
+            long covered = channel.size();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(INDEX_MAGIC);
+                out.writeLong(covered);
+                out.writeInt(offsets.size());
+                for (Map.Entry<String, Long> entry : offsets.entrySet()) {
+                    out.write(HexFormat.of().parseHex(entry.getKey()));
+                    out.writeLong(entry.getValue());
+                }
+            }
+            Files.move(tmp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            unindexedAppends = 0;
+        } catch (IOException e) {
+            System.err.println("[PersistentEmbeddingCache] ❌ Lỗi khi ghi index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return Vị trí trong log bắt đầu quét lại (phần chưa có trong file index)
+     */
+    private long loadIndex(long logSize) {
+        if (!Files.exists(indexPath)) {
+            return Integer.BYTES;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath)))) {
+            long covered;
+            if (in.readInt() != INDEX_MAGIC || (covered = in.readLong()) > logSize) {
+                System.out.println("[PersistentEmbeddingCache] ⚠️ Index không khớp log, quét lại toàn bộ log");
+                return Integer.BYTES;
+            }
+            int count = in.readInt();
+            byte[] key = new byte[KEY_BYTES];
+            for (int i = 0; i < count; i++) {
+                in.readFully(key);
+                offsets.put(HexFormat.of().formatHex(key), in.readLong());
+            }
+            return covered;
+        } catch (IOException e) {
+            System.err.println("[PersistentEmbeddingCache] ⚠️ Lỗi khi đọc index (" + e.getMessage() + "), quét lại toàn bộ log");
+            offsets.clear();
+            return Integer.BYTES;
+        }
+    }
+
+    /**
+     * Index các record từ vị trí position đến cuối log; record ghi dở (crash giữa chừng) bị cắt khỏi log
+     */
+    private int scanLog(FileChannel channel, long position) throws IOException {
+        long size = channel.size();
+        int recovered = 0;
+        while (position < size) {
+            if (position + RECORD_HEADER_BYTES > size) {
+                break;
+            }
+            ByteBuffer header = readFully(channel, RECORD_HEADER_BYTES, position);
+            byte[] key = new byte[KEY_BYTES];
+            header.get(key);
+            int length = header.getInt();
+            long end = position + RECORD_HEADER_BYTES + (long) length * Float.BYTES;
+            if (length <= 0 || end > size) {
+                break;
+            }
+            offsets.put(HexFormat.of().formatHex(key), position);
+            position = end;
+            recovered++;
+        }
+        if (position < size) {
+            System.out.println("[PersistentEmbeddingCache] ⚠️ Cắt " + (size - position) + " byte ghi dở ở cuối log");
+            channel.truncate(position);
+        }
+        if (recovered > 0) {
+            unindexedAppends += recovered;
+        }
+        return recovered;
+    }
+
+    private float[] read(FileChannel channel, long offset) {
+        try {
+            int length = readFully(channel, RECORD_HEADER_BYTES, offset).getInt(KEY_BYTES);
+            float[] vector = new float[length];
+            readFully(channel, length * Float.BYTES, offset + RECORD_HEADER_BYTES).asFloatBuffer().get(vector);
+            return vector;
+        } catch (IOException e) {
+            System.err.println("[PersistentEmbeddingCache] ❌ Lỗi khi đọc embedding log: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private String key(String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(embeddingModelName.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(Integer.toString(dimensions).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            return HexFormat.of().formatHex(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 không khả dụng", e);
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, int length, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Hết file tại vị trí " + (position + buffer.position()));
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+}
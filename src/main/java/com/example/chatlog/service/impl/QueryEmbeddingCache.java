@@ -0,0 +1,285 @@
+package com.example.chatlog.service.impl;
+
+import com.example.chatlog.utils.TextNormalizer;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+/**
+ * Cache embedding của câu hỏi người dùng, đặt trước EmbeddingModel.embed
+ *
+ * - Key: câu hỏi đã chuẩn hóa (khoảng trắng, chữ hoa/thường, dấu tiếng Việt)
+ * - LRU có giới hạn kích thước + TTL cho từng entry
+ * - Các request trùng key đang chạy song song dùng chung một lời gọi embedding
+ * - Tùy chọn ghi ra file khi shutdown và nạp lại khi khởi động
+ */
+@Service
+public class QueryEmbeddingCache {
+
+    private static final int SPILL_FILE_MAGIC = 0x51454331; // "QEC1"
+
+    private final MeterRegistry meterRegistry;
+    private final Counter hitCounter;
+    private final Counter missCounter;
+    private final Counter sizeEvictionCounter;
+    private final Counter expiredEvictionCounter;
+
+    @Value("${vector-search.query-cache.max-size:1000}")
+    private int maxSize;
+
+    @Value("${vector-search.query-cache.ttl-ms:21600000}")
+    private long ttlMs;
+
+    // Để trống để tắt tính năng ghi cache ra đĩa
+    @Value("${vector-search.query-cache.spill-file:}")
+    private String spillFile;
+
+    @Value("${spring.ai.openai.embedding.options.model:text-embedding-3-small}")
+    private String embeddingModelName;
+
+    private record CachedEmbedding(float[] vector, long expiresAt) {
+    }
+
+    private final LinkedHashMap<String, CachedEmbedding> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final Map<String, CompletableFuture<float[]>> inFlight = new ConcurrentHashMap<>();
+
+    public QueryEmbeddingCache(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        this.hitCounter = Counter.builder("query.embedding.cache.requests")
+            .tag("result", "hit").register(meterRegistry);
+        this.missCounter = Counter.builder("query.embedding.cache.requests")
+            .tag("result", "miss").register(meterRegistry);
+        this.sizeEvictionCounter = Counter.builder("query.embedding.cache.evictions")
+            .tag("cause", "size").register(meterRegistry);
+        this.expiredEvictionCounter = Counter.builder("query.embedding.cache.evictions")
+            .tag("cause", "expired").register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void init() {
+        meterRegistry.gauge("query.embedding.cache.size", this, QueryEmbeddingCache::size);
+        loadSpillFile();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        writeSpillFile();
+    }
+
+    /**
+     * Lấy embedding từ cache, nếu chưa có thì gọi embedder và lưu lại
+     *
+     * @param text Câu hỏi gốc của người dùng
+     * @param embedder Hàm tạo embedding (thường là embeddingModel::embed)
+     */
+    public float[] getOrCompute(String text, Function<String, float[]> embedder) {
+        String key = TextNormalizer.normalize(text);
+        float[] cached = get(key);
+        if (cached != null) {
+            hitCounter.increment();
+            return cached;
+        }
+        missCounter.increment();
+
+        CompletableFuture<float[]> future = new CompletableFuture<>();
+        CompletableFuture<float[]> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            // Request khác đang tạo embedding cho cùng câu hỏi → đợi dùng chung kết quả
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException re ? re : e;
+            }
+        }
+        try {
+            float[] vector = embedder.apply(text);
+            if (vector != null) {
+                put(key, vector);
+            }
+            future.complete(vector);
+            return vector;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * Bản batch của getOrCompute: các câu hỏi chưa có trong cache (bỏ trùng sau chuẩn hóa)
+     * được embed trong một lời gọi duy nhất, kết quả trả về theo đúng thứ tự đầu vào
+     *
+     * @param texts Danh sách câu hỏi gốc
+     * @param embedder Hàm embed nhiều câu một lần (thường là embeddingModel::embed)
+     */
+    public List<float[]> getOrComputeAll(List<String> texts, Function<List<String>, List<float[]>> embedder) {
+        List<float[]> results = new ArrayList<>(texts.size());
+        Map<String, Integer> missIndex = new LinkedHashMap<>();
+        List<String> missTexts = new ArrayList<>();
+        List<String> keys = new ArrayList<>(texts.size());
+        for (String text : texts) {
+            String key = TextNormalizer.normalize(text);
+            keys.add(key);
+            float[] cached = get(key);
+            results.add(cached);
+            if (cached != null) {
+                hitCounter.increment();
+            } else if (!missIndex.containsKey(key)) {
+                missCounter.increment();
+                missIndex.put(key, missTexts.size());
+                missTexts.add(text);
+            }
+        }
+        if (missTexts.isEmpty()) {
+            return results;
+        }
+
+        List<float[]> computed = embedder.apply(missTexts);
+        for (Map.Entry<String, Integer> miss : missIndex.entrySet()) {
+            float[] vector = computed.get(miss.getValue());
+            if (vector != null) {
+                put(miss.getKey(), vector);
+            }
+        }
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i) == null) {
+                results.set(i, computed.get(missIndex.get(keys.get(i))));
+            }
+        }
+        return results;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    private synchronized float[] get(String key) {
+        CachedEmbedding entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt() <= System.currentTimeMillis()) {
+            entries.remove(key);
+            expiredEvictionCounter.increment();
+            return null;
+        }
+        return entry.vector();
+    }
+
+    private synchronized void put(String key, float[] vector) {
+        entries.put(key, new CachedEmbedding(vector, System.currentTimeMillis() + ttlMs));
+        Iterator<Map.Entry<String, CachedEmbedding>> it = entries.entrySet().iterator();
+        while (entries.size() > maxSize && it.hasNext()) {
+            it.next();
+            it.remove();
+            sizeEvictionCounter.increment();
+        }
+    }
+
+    /**
+     * Nạp cache từ file (bỏ qua entry đã hết hạn hoặc file của embedding model khác)
+     */
+    private void loadSpillFile() {
+        if (spillFile == null || spillFile.isBlank()) {
+            return;
+        }
+        Path path = Paths.get(spillFile);
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != SPILL_FILE_MAGIC || !embeddingModelName.equals(in.readUTF())) {
+                System.out.println("[QueryEmbeddingCache] ⚠️ Spill file không tương thích, bỏ qua: " + path);
+                return;
+            }
+            int count = in.readInt();
+            long now = System.currentTimeMillis();
+            int loaded = 0;
+            synchronized (this) {
+                for (int i = 0; i < count; i++) {
+                    String key = in.readUTF();
+                    long expiresAt = in.readLong();
+                    float[] vector = new float[in.readInt()];
+                    for (int j = 0; j < vector.length; j++) {
+                        vector[j] = in.readFloat();
+                    }
+                    if (expiresAt > now && entries.size() < maxSize) {
+                        entries.put(key, new CachedEmbedding(vector, expiresAt));
+                        loaded++;
+                    }
+                }
+            }
+            System.out.println("[QueryEmbeddingCache] ✅ Loaded " + loaded + " query embeddings from " + path);
+        } catch (IOException e) {
+            System.err.println("[QueryEmbeddingCache] ❌ Lỗi khi đọc spill file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Ghi các entry còn hạn ra file (ghi file tạm rồi rename để không để lại file hỏng)
+     */
+    private void writeSpillFile() {
+        if (spillFile == null || spillFile.isBlank()) {
+            return;
+        }
+        List<Map.Entry<String, CachedEmbedding>> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(entries.entrySet());
+        }
+        long now = System.currentTimeMillis();
+        snapshot.removeIf(e -> e.getValue().expiresAt() <= now);
+
+        Path path = Paths.get(spillFile);
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(SPILL_FILE_MAGIC);
+                out.writeUTF(embeddingModelName);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, CachedEmbedding> entry : snapshot) {
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(entry.getValue().expiresAt());
+                    float[] vector = entry.getValue().vector();
+                    out.writeInt(vector.length);
+                    for (float v : vector) {
+                        out.writeFloat(v);
+                    }
+                }
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            System.out.println("[QueryEmbeddingCache] 💾 Spilled " + snapshot.size() + " query embeddings to " + path);
+        } catch (IOException e) {
+            System.err.println("[QueryEmbeddingCache] ❌ Lỗi khi ghi spill file: " + e.getMessage());
+        }
+    }
+}
@@ -1,19 +1,29 @@
 package com.example.chatlog.service.impl;
 
-import com.example.chatlog.entity.ai.AiEmbedding;
+import com.example.chatlog.dto.KnowledgeBaseExample;
+import com.example.chatlog.dto.ScoredEmbedding;
 import com.example.chatlog.service.AiEmbeddingService;
+import com.example.chatlog.utils.MaximalMarginalRelevance;
+import com.example.chatlog.utils.PreEmbeddedVectorStore;
 import org.springframework.ai.document.Document;
 import org.springframework.ai.embedding.EmbeddingModel;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
+// Không đặt @Transactional ở đây: nhánh bộ nhớ (hnsw/int8/hybrid/simple) không được mượn connection của pool Supabase,
+// chỉ fallback pgvector mở transaction (AiEmbeddingServiceImpl.findSimilarEmbeddings)
 @Service
-@Transactional("secondaryTransactionManager")
 public class VectorSearchService {
 
     @Autowired
@@ -22,6 +32,53 @@ public class VectorSearchService {
     @Autowired
     private AiEmbeddingService aiEmbeddingService;
 
+    @Autowired
+    private InMemoryVectorIndexService inMemoryVectorIndexService;
+
+    @Autowired
+    private QueryEmbeddingCache queryEmbeddingCache;
+
+    @Autowired
+    private PersistentEmbeddingCache persistentEmbeddingCache;
+
+    @Autowired
+    private PreEmbeddedVectorStore vectorStore;
+
+    // Vượt ngưỡng thì xóa toàn bộ (kho tri thức chỉ vài nghìn entry, thường không chạm tới)
+    private static final int PROMPT_BLOCK_CACHE_LIMIT = 10_000;
+
+    private final Map<UUID, String> promptBlocks = new ConcurrentHashMap<>();
+
+    // hnsw | int8: tìm trong index bộ nhớ (fallback pgvector khi index chưa sẵn sàng), pgvector: luôn query database
+    // hybrid: HNSW + BM25 trên question/keywords, gộp bằng reciprocal-rank fusion
+    // simple: quét SimpleVectorStore đã nạp từ DB (fallback pgvector khi chưa nạp xong)
+    @Value("${vector-search.mode:hnsw}")
+    private String searchMode;
+
+    @Value("${vector-search.hybrid.top-k:5}")
+    private int hybridTopK;
+
+    @Value("${vector-search.hybrid.candidates:30}")
+    private int hybridCandidates;
+
+    @Value("${vector-search.hybrid.rrf-k:60}")
+    private int hybridRrfK;
+
+    @Value("${vector-search.results.top-k:8}")
+    private int resultTopK;
+
+    // Ví dụ có cosine similarity thấp hơn ngưỡng bị loại (0 = không lọc)
+    @Value("${vector-search.results.min-similarity:0.0}")
+    private double minSimilarity;
+
+    // Số ứng viên lấy ra trước khi lọc ngưỡng + MMR (>= topK)
+    @Value("${vector-search.results.mmr.candidates:20}")
+    private int mmrCandidates;
+
+    // 1 = chỉ xét độ liên quan (tắt MMR), càng nhỏ càng loại mạnh các ví dụ gần trùng nhau
+    @Value("${vector-search.results.mmr.lambda:0.7}")
+    private double mmrLambda;
+
     /**
      * VECTOR SEARCH: Tìm kiếm semantic similarity thuần túy
      */
@@ -30,7 +87,7 @@ public class VectorSearchService {
         System.out.println("🔍 VECTOR SEMANTIC SEARCH");
         System.out.println("=".repeat(100));
         
-        // Check database stats first
+        // Check database stats first (đọc từ EmbeddingCatalogService trong bộ nhớ, không query database)
         long totalEmbeddings = aiEmbeddingService.countAllNotDeleted();
         System.out.println("\n📊 DATABASE STATS:");
         System.out.println("   Total embeddings in database: " + totalEmbeddings);
@@ -44,21 +101,14 @@ public class VectorSearchService {
         
         // BƯỚC 1: Tạo Query Embedding cho semantic search
         float[] queryEmbedding = null;
-        String queryEmbeddingString = null;
         
         if (embeddingModel != null) {
             try {
                 System.out.println("\n🔄 STEP 1: Creating Query Embedding for Semantic Search");
-                queryEmbedding = embeddingModel.embed(userQuery);
-                
-                // Convert to PostgreSQL vector format
-                StringBuilder sb = new StringBuilder("[");
-                for (int i = 0; i < queryEmbedding.length; i++) {
-                    if (i > 0) sb.append(",");
-                    sb.append(queryEmbedding[i]);
-                }
-                sb.append("]");
-                queryEmbeddingString = sb.toString();
+                // float[] được bind trực tiếp (binary) khi query pgvector, không cần format chuỗi
+                // Câu hỏi lặp lại lấy từ cache bộ nhớ (theo câu đã chuẩn hóa, có giới hạn + TTL), không gọi lại embedding API
+                // Không ghi vào PersistentEmbeddingCache: query người dùng là tập không giới hạn, log trên đĩa sẽ phình mãi
+                queryEmbedding = queryEmbeddingCache.getOrCompute(userQuery, embeddingModel::embed);
                 
                 System.out.println("   ✅ Query Embedding Created: " + queryEmbedding.length + " dimensions");
             } catch (Exception e) {
@@ -70,16 +120,48 @@ public class VectorSearchService {
         // BƯỚC 2: Vector Search
         System.out.println("\n🎯 STEP 2: Vector Semantic Search");
         
-        List<AiEmbedding> similarEmbeddings;
+        List<ScoredEmbedding> similarEmbeddings;
         String resultMode = "VECTOR";
-        int topK = 8; // Lấy 10 kết quả tốt nhất
+        int topK = resultTopK;
         
-        if (queryEmbeddingString != null) {
-            // Lấy 10 kết quả tốt nhất từ vector similarity search
-            System.out.println("   ✅ Strategy: Pure vector search for top 10 most relevant examples");
+        boolean inMemoryMode = "hnsw".equalsIgnoreCase(searchMode) || "int8".equalsIgnoreCase(searchMode);
+        if ("hybrid".equalsIgnoreCase(searchMode) && inMemoryVectorIndexService.isReady()) {
+            // BM25 bắt được từ khóa chính xác (IP nguồn, deny, 24h...) mà embedding dễ bỏ sót
+            // Kết quả tốt hơn nên dùng topK nhỏ hơn → prompt gửi cho LLM ngắn hơn
+            topK = hybridTopK;
+            System.out.println("   ✅ Strategy: Hybrid BM25 + vector (RRF) for top " + topK + " most relevant examples");
+            long searchStart = System.nanoTime();
+            similarEmbeddings = inMemoryVectorIndexService.hybridSearch(
+                userQuery, queryEmbedding, candidatePoolSize(topK), hybridCandidates, hybridRrfK);
+            resultMode = "HYBRID";
+
+            System.out.println("   ⏱️ Hybrid lookup: " + (System.nanoTime() - searchStart) / 1000 + "µs");
+            System.out.println("   🧪 Final result: " + similarEmbeddings.size() + " examples");
+        } else if (queryEmbedding != null && inMemoryMode && inMemoryVectorIndexService.isReady()) {
+            // Tìm trong index bộ nhớ (HNSW hoặc int8 + rerank float32), không round trip tới Supabase
+            resultMode = searchMode.toUpperCase();
+            System.out.println("   ✅ Strategy: In-memory " + resultMode + " search for top " + topK + " most relevant examples");
+            long searchStart = System.nanoTime();
+            similarEmbeddings = inMemoryVectorIndexService.search(queryEmbedding, candidatePoolSize(topK));
+
+            System.out.println("   ⏱️ " + resultMode + " lookup: " + (System.nanoTime() - searchStart) / 1000 + "µs");
+            System.out.println("   🧪 Final result: " + similarEmbeddings.size() + " examples");
+        } else if (queryEmbedding != null && "simple".equalsIgnoreCase(searchMode) && vectorStore.isHydrated()) {
+            // Quét toàn bộ SimpleVectorStore trong bộ nhớ (vector đã nạp từ DB), không round trip tới Supabase
+            resultMode = "SIMPLE";
+            System.out.println("   ✅ Strategy: In-memory SimpleVectorStore search for top " + topK + " most relevant examples");
+            long searchStart = System.nanoTime();
+            similarEmbeddings = vectorStore.search(queryEmbedding, candidatePoolSize(topK));
 
+            System.out.println("   ⏱️ SIMPLE lookup over " + vectorStore.size() + " documents: "
+                + (System.nanoTime() - searchStart) / 1000 + "µs");
+            System.out.println("   🧪 Final result: " + similarEmbeddings.size() + " examples");
+        } else if (queryEmbedding != null) {
+            System.out.println("   ✅ Strategy: Pure vector search for top " + topK + " most relevant examples");
+
+            // Không kéo vector về: MMR chỉ cần vector của ứng viên qua ngưỡng (selectExamples → attachVectors)
             similarEmbeddings = aiEmbeddingService.findSimilarEmbeddings(
-                queryEmbeddingString, topK
+                queryEmbedding, candidatePoolSize(topK), false
             );
             
             System.out.println("   📊 Vector results: " + similarEmbeddings.size());
@@ -90,6 +172,13 @@ public class VectorSearchService {
             resultMode = "NONE";
         }
         
+        // Lọc theo ngưỡng similarity rồi MMR để bỏ các ví dụ gần trùng nhau (mỗi ví dụ kèm query_dsl tốn nhiều token)
+        // Hybrid không có query embedding thì similarity đều = 0 nên bỏ qua ngưỡng
+        int candidateCount = similarEmbeddings.size();
+        similarEmbeddings = selectExamples(similarEmbeddings, topK, queryEmbedding != null);
+        System.out.println("   ✂️ Threshold (" + minSimilarity + ") + MMR (λ=" + mmrLambda + "): "
+            + candidateCount + " → " + similarEmbeddings.size());
+
         System.out.println("   ✅ Found: " + similarEmbeddings.size() + " similar embeddings");
         
         if (similarEmbeddings.isEmpty()) {
@@ -102,60 +191,201 @@ public class VectorSearchService {
         System.out.println("-".repeat(100));
         
         for (int i = 0; i < similarEmbeddings.size(); i++) {
-            AiEmbedding embedding = similarEmbeddings.get(i);
-            String question = (String) embedding.getMetadata().get("question");
-            String scenario = (String) embedding.getMetadata().get("scenario");
+            ScoredEmbedding hit = similarEmbeddings.get(i);
+            String question = hit.example().question();
+            String scenario = hit.example().scenario();
             
             System.out.println("\n[RANK #" + (i+1) + "] " + question);
             if (scenario != null) {
                 System.out.println("   📁 Scenario: " + scenario);
             }
-            System.out.println("   🎯 Matched by: Vector Similarity Score");
+            System.out.println("   🎯 Matched by: " + ("HYBRID".equals(resultMode) ? "BM25 + Vector (RRF)" : "Vector Similarity Score")
+                + String.format(" | similarity=%.4f | score=%.4f", hit.similarity(), hit.score()));
         }
         
         System.out.println("\n" + "-".repeat(100));
         
         // Format kết quả cho LLM
+        String examples = formatExamples(similarEmbeddings, resultMode);
+
+        System.out.println("\n✅ Total: " + similarEmbeddings.size() + " examples found using " + resultMode + " SEARCH");
+        System.out.println("=".repeat(100) + "\n");
+        
+        return examples;
+    }
+
+    /**
+     * Batch VECTOR SEARCH cho đánh giá offline / replay nhiều câu hỏi:
+     * embed N câu hỏi trong một request embedding và lấy N danh sách top-K trong một lần
+     * (một câu SQL với pgvector, hoặc một lượt trên index bộ nhớ). Kết quả theo thứ tự đầu vào
+     */
+    public List<String> findRelevantExamplesBatch(List<String> userQueries) {
+        if (userQueries == null || userQueries.isEmpty()) {
+            return List.of();
+        }
+        long start = System.currentTimeMillis();
+        List<float[]> queryEmbeddings = null;
+        if (embeddingModel != null) {
+            try {
+                queryEmbeddings = queryEmbeddingCache.getOrComputeAll(userQueries, embeddingModel::embed);
+            } catch (Exception e) {
+                System.out.println("   ❌ Batch embedding error: " + e.getMessage());
+            }
+        }
+
+        boolean hybrid = "hybrid".equalsIgnoreCase(searchMode) && inMemoryVectorIndexService.isReady();
+        boolean inMemoryMode = ("hnsw".equalsIgnoreCase(searchMode) || "int8".equalsIgnoreCase(searchMode))
+            && inMemoryVectorIndexService.isReady();
+        int topK = hybrid ? hybridTopK : resultTopK;
+        String resultMode;
+        List<List<ScoredEmbedding>> batchResults;
+        if (hybrid) {
+            resultMode = "HYBRID";
+            batchResults = new ArrayList<>(userQueries.size());
+            for (int i = 0; i < userQueries.size(); i++) {
+                batchResults.add(inMemoryVectorIndexService.hybridSearch(userQueries.get(i),
+                    queryEmbeddings != null ? queryEmbeddings.get(i) : null,
+                    candidatePoolSize(topK), hybridCandidates, hybridRrfK));
+            }
+        } else if (queryEmbeddings != null && inMemoryMode) {
+            resultMode = searchMode.toUpperCase();
+            batchResults = inMemoryVectorIndexService.searchBatch(queryEmbeddings, candidatePoolSize(topK));
+        } else if (queryEmbeddings != null && "simple".equalsIgnoreCase(searchMode) && vectorStore.isHydrated()) {
+            resultMode = "SIMPLE";
+            batchResults = new ArrayList<>(queryEmbeddings.size());
+            for (float[] queryEmbedding : queryEmbeddings) {
+                batchResults.add(vectorStore.search(queryEmbedding, candidatePoolSize(topK)));
+            }
+        } else if (queryEmbeddings != null) {
+            resultMode = "VECTOR";
+            batchResults = aiEmbeddingService.findSimilarEmbeddingsBatch(queryEmbeddings, candidatePoolSize(topK),
+                false);
+        } else {
+            return Collections.nCopies(userQueries.size(), "⚠️ Không tìm thấy ví dụ tương đồng.");
+        }
+
+        List<String> examples = new ArrayList<>(userQueries.size());
+        for (int i = 0; i < batchResults.size(); i++) {
+            List<ScoredEmbedding> selected = selectExamples(batchResults.get(i), topK, queryEmbeddings != null);
+            examples.add(selected.isEmpty()
+                ? "⚠️ Không tìm thấy ví dụ tương đồng."
+                : formatExamples(selected, resultMode));
+        }
+        System.out.println("🔍 BATCH " + resultMode + " SEARCH: " + userQueries.size() + " queries in "
+            + (System.currentTimeMillis() - start) + "ms");
+        return examples;
+    }
+
+    /**
+     * Format danh sách ví dụ cho prompt gửi LLM (phần nội dung mỗi ví dụ lấy từ cache, chỉ ghép header + điểm)
+     */
+    private String formatExamples(List<ScoredEmbedding> similarEmbeddings, String resultMode) {
         StringBuilder examples = new StringBuilder();
         examples.append("RELEVANT EXAMPLES FROM KNOWLEDGE BASE\n");
         examples.append("Mode: ").append(resultMode).append("\n\n");
 
         for (int i = 0; i < similarEmbeddings.size(); i++) {
-            AiEmbedding embedding = similarEmbeddings.get(i);
-            examples.append("Example ").append(i + 1).append(":\n");
-            Object qMeta = embedding.getMetadata() != null ? embedding.getMetadata().get("question") : null;
-            if (qMeta != null) {
-                examples.append("Question: ").append(qMeta).append("\n");
-            }
-            // Content preview (để luôn thấy tiêu chí tìm kiếm từ kho tri thức)
-            String content = embedding.getContent();
-            if (content != null && !content.isEmpty()) {
-                String preview = content.length() > 180 ? content.substring(0, 180) + "..." : content;
-                examples.append("Content: ").append(preview).append("\n");
-            }
-            
-            // Include scenario
-            Object scenario = embedding.getMetadata().get("scenario");
-            if (scenario != null) {
-                examples.append("Scenario: ").append(scenario).append("\n");
-            }
-            // Include phase
-            Object phase = embedding.getMetadata().get("phase");
-            if (phase != null) {
-                examples.append("Phase: ").append(phase).append("\n");
-            }
-            Object qdsl = embedding.getMetadata() != null ? embedding.getMetadata().get("query_dsl") : null;
-            if (qdsl != null) {
-                examples.append("Query: ").append(qdsl).append("\n\n");
-            } else {
-                examples.append("\n");
-            }
+            ScoredEmbedding hit = similarEmbeddings.get(i);
+            examples.append("Example ").append(i + 1)
+                .append(String.format(" (similarity %.2f)", hit.similarity())).append(":\n")
+                .append(promptBlock(hit.example()));
         }
 
-        System.out.println("\n✅ Total: " + similarEmbeddings.size() + " examples found using VECTOR SEARCH");
-        System.out.println("=".repeat(100) + "\n");
-        
         return examples.toString();
     }
 
+    /**
+     * Phần prompt của một entry trong kho tri thức, format một lần rồi cache theo id
+     * (entry không bị sửa tại chỗ: nội dung đổi thì bản cũ bị soft delete và sinh id mới)
+     */
+    private String promptBlock(KnowledgeBaseExample example) {
+        if (example.id() == null) {
+            return formatPromptBlock(example);
+        }
+        if (promptBlocks.size() >= PROMPT_BLOCK_CACHE_LIMIT) {
+            promptBlocks.clear();
+        }
+        return promptBlocks.computeIfAbsent(example.id(), id -> formatPromptBlock(example));
+    }
+
+    private static String formatPromptBlock(KnowledgeBaseExample example) {
+        StringBuilder block = new StringBuilder();
+        if (example.question() != null) {
+            block.append("Question: ").append(example.question()).append("\n");
+        }
+        // Content preview (để luôn thấy tiêu chí tìm kiếm từ kho tri thức)
+        String content = example.content();
+        if (content != null && !content.isEmpty()) {
+            String preview = content.length() > 180 ? content.substring(0, 180) + "..." : content;
+            block.append("Content: ").append(preview).append("\n");
+        }
+        if (example.scenario() != null) {
+            block.append("Scenario: ").append(example.scenario()).append("\n");
+        }
+        if (example.phase() != null) {
+            block.append("Phase: ").append(example.phase()).append("\n");
+        }
+        if (example.queryDsl() != null) {
+            block.append("Query: ").append(example.queryDsl()).append("\n\n");
+        } else {
+            block.append("\n");
+        }
+        return block.toString();
+    }
+
+    /**
+     * Số ứng viên cần lấy từ index để sau khi lọc ngưỡng + MMR vẫn còn đủ topK
+     */
+    private int candidatePoolSize(int topK) {
+        return mmrLambda < 1.0 || minSimilarity > 0 ? Math.max(topK, mmrCandidates) : topK;
+    }
+
+    /**
+     * Bỏ ứng viên dưới ngưỡng min-similarity rồi chọn topK bằng Maximal Marginal Relevance
+     */
+    private List<ScoredEmbedding> selectExamples(List<ScoredEmbedding> candidates, int topK, boolean applyThreshold) {
+        List<ScoredEmbedding> filtered = applyThreshold && minSimilarity > 0
+            ? candidates.stream().filter(hit -> hit.similarity() >= minSimilarity).toList()
+            : candidates;
+        if (mmrLambda >= 1.0) {
+            return filtered.size() > topK ? filtered.subList(0, topK) : filtered;
+        }
+        return MaximalMarginalRelevance.select(attachVectors(filtered), topK, mmrLambda);
+    }
+
+    /**
+     * Bổ sung vector cho ứng viên chưa có (kết quả pgvector lấy không kèm vector): lấy từ PersistentEmbeddingCache
+     * theo question (văn bản đã embed), chỉ phần còn thiếu mới đọc từ database theo id
+     */
+    private List<ScoredEmbedding> attachVectors(List<ScoredEmbedding> candidates) {
+        List<ScoredEmbedding> missing = candidates.stream().filter(hit -> hit.vector() == null).toList();
+        if (missing.isEmpty() || candidates.size() < 2) {
+            return candidates;
+        }
+        Map<UUID, float[]> vectors = new HashMap<>();
+        List<float[]> cached = persistentEmbeddingCache.lookupAll(
+            missing.stream().map(hit -> hit.example().question() != null ? hit.example().question() : "").toList());
+        List<UUID> dbIds = new ArrayList<>();
+        for (int i = 0; i < missing.size(); i++) {
+            UUID id = missing.get(i).example().id();
+            if (cached.get(i) != null) {
+                vectors.put(id, cached.get(i));
+            } else if (id != null) {
+                dbIds.add(id);
+            }
+        }
+        if (!dbIds.isEmpty()) {
+            vectors.putAll(aiEmbeddingService.findVectorsByIds(dbIds));
+        }
+        System.out.println("   🧮 MMR vectors: " + (missing.size() - dbIds.size()) + " from cache, "
+            + dbIds.size() + " from database");
+
+        List<ScoredEmbedding> withVectors = new ArrayList<>(candidates.size());
+        for (ScoredEmbedding hit : candidates) {
+            float[] vector = hit.vector() != null ? hit.vector() : vectors.get(hit.example().id());
+            withVectors.add(new ScoredEmbedding(hit.example(), hit.similarity(), hit.score(), vector));
+        }
+        return withVectors;
+    }
+
 }
@@ -0,0 +1,66 @@
+package com.example.chatlog.service.impl;
+
+import com.example.chatlog.service.AiEmbeddingService;
+import com.example.chatlog.utils.PreEmbeddedVectorStore;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Nạp SimpleVectorStore từ ai_embedding khi khởi động: duyệt tuần tự các bản ghi chưa xóa,
+ * dùng vector đã lưu trong DB (không gọi embedding API)
+ *
+ * Sau đó KnowledgeBaseIndexingService cập nhật tăng dần (put bản ghi mới insert, delete bản ghi bị soft delete)
+ *
+ * Chỉ chạy khi vector-search.mode = simple: các mode khác không đọc SimpleVectorStore,
+ * nạp toàn bộ vector lên heap chỉ tốn bộ nhớ và thời gian khởi động
+ */
+@Service
+public class VectorStoreHydrationService {
+
+    @Autowired
+    private PreEmbeddedVectorStore vectorStore;
+
+    @Autowired
+    private AiEmbeddingService aiEmbeddingService;
+
+    @Value("${vector-search.simple-store.hydrate:true}")
+    private boolean hydrateEnabled;
+
+    @Value("${vector-search.mode:hnsw}")
+    private String searchMode;
+
+    /**
+     * Mode hiện tại có dùng SimpleVectorStore không
+     */
+    public boolean isEnabled() {
+        return hydrateEnabled && "simple".equalsIgnoreCase(searchMode);
+    }
+
+    public synchronized void hydrate() {
+        if (!isEnabled()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            Set<String> ids = new HashSet<>();
+            aiEmbeddingService.forEachActiveEmbedding((example, vector) -> {
+                if (example.id() == null || vector == null) {
+                    return;
+                }
+                vectorStore.put(example, vector);
+                ids.add(example.id().toString());
+            });
+            // Bản ghi đã bị soft delete kể từ lần nạp trước
+            vectorStore.retainOnly(ids);
+            vectorStore.markHydrated();
+            System.out.println("[VectorStoreHydrationService] ✅ Hydrated " + ids.size() + " embeddings in "
+                + (System.currentTimeMillis() - start) + "ms");
+        } catch (Exception e) {
+            System.err.println("[VectorStoreHydrationService] ❌ Lỗi khi nạp vector store từ DB: " + e.getMessage());
+        }
+    }
+}
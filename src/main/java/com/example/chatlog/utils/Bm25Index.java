@@ -0,0 +1,130 @@
+package com.example.chatlog.utils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.regex.Pattern;
+
+/**
+ * Inverted index BM25 trong bộ nhớ, bất biến sau khi build (thread-safe cho đọc)
+ *
+ * Tokenize: TextNormalizer (bỏ dấu, chữ thường) rồi tách theo dấu câu và khoảng trắng.
+ * Tiếng Việt tách theo âm tiết nên index thêm bigram ("ip nguon" → "ip", "nguon", "ip_nguon")
+ * để cụm từ khớp liền nhau được điểm cao hơn khớp rời rạc.
+ */
+public class Bm25Index {
+
+    /**
+     * Kết quả tìm kiếm: vị trí document (theo thứ tự lúc build) và điểm BM25
+     */
+    public record Hit(int doc, float score) {
+    }
+
+    // Dấu câu ngắt cụm (không tạo bigram qua dấu câu), khoảng trắng chỉ ngắt từ
+    private static final Pattern PUNCTUATION = Pattern.compile("[^\\p{L}\\p{N}\\s]+");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final float k1;
+    private final float b;
+    private final int documentCount;
+    private final float averageLength;
+    private final int[] lengths;
+    // term → (doc → term frequency)
+    private final Map<String, Map<Integer, Integer>> postings = new HashMap<>();
+
+    /**
+     * @param documents Nội dung từng document (null được coi là rỗng)
+     * @param k1 Độ bão hòa term frequency (thường 1.2)
+     * @param b Mức chuẩn hóa theo độ dài document (thường 0.75)
+     */
+    public Bm25Index(List<String> documents, float k1, float b) {
+        this.k1 = k1;
+        this.b = b;
+        this.documentCount = documents.size();
+        this.lengths = new int[documentCount];
+        long totalLength = 0;
+        for (int doc = 0; doc < documentCount; doc++) {
+            List<String> terms = tokenize(documents.get(doc));
+            lengths[doc] = terms.size();
+            totalLength += terms.size();
+            for (String term : terms) {
+                postings.computeIfAbsent(term, t -> new HashMap<>()).merge(doc, 1, Integer::sum);
+            }
+        }
+        this.averageLength = documentCount > 0 ? Math.max(1f, (float) totalLength / documentCount) : 1f;
+    }
+
+    public int size() {
+        return documentCount;
+    }
+
+    /**
+     * Tìm top-K document theo điểm BM25 (bỏ qua document không khớp term nào)
+     */
+    public List<Hit> search(String query, int k) {
+        if (k <= 0 || documentCount == 0) {
+            return List.of();
+        }
+        // Term lặp lại trong query chỉ tính một lần
+        Map<String, Boolean> queryTerms = new LinkedHashMap<>();
+        for (String term : tokenize(query)) {
+            queryTerms.put(term, Boolean.TRUE);
+        }
+        Map<Integer, Float> scores = new HashMap<>();
+        for (String term : queryTerms.keySet()) {
+            Map<Integer, Integer> posting = postings.get(term);
+            if (posting == null) {
+                continue;
+            }
+            double idf = Math.log(1 + (documentCount - posting.size() + 0.5) / (posting.size() + 0.5));
+            for (Map.Entry<Integer, Integer> entry : posting.entrySet()) {
+                int tf = entry.getValue();
+                float norm = k1 * (1 - b + b * lengths[entry.getKey()] / averageLength);
+                float score = (float) (idf * tf * (k1 + 1) / (tf + norm));
+                scores.merge(entry.getKey(), score, Float::sum);
+            }
+        }
+
+        PriorityQueue<Hit> best = new PriorityQueue<>(Comparator.comparingDouble(Hit::score));
+        for (Map.Entry<Integer, Float> entry : scores.entrySet()) {
+            if (best.size() < k) {
+                best.add(new Hit(entry.getKey(), entry.getValue()));
+            } else if (entry.getValue() > best.peek().score()) {
+                best.poll();
+                best.add(new Hit(entry.getKey(), entry.getValue()));
+            }
+        }
+        List<Hit> results = new ArrayList<>(best);
+        results.sort(Comparator.comparingDouble(Hit::score).reversed());
+        return results;
+    }
+
+    /**
+     * Unigram + bigram của text đã chuẩn hóa
+     */
+    static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<>();
+        String normalized = TextNormalizer.normalize(text);
+        if (normalized.isEmpty()) {
+            return terms;
+        }
+        for (String segment : PUNCTUATION.split(normalized)) {
+            String previous = null;
+            for (String word : WHITESPACE.split(segment)) {
+                if (word.isEmpty()) {
+                    continue;
+                }
+                terms.add(word);
+                if (previous != null) {
+                    terms.add(previous + "_" + word);
+                }
+                previous = word;
+            }
+        }
+        return terms;
+    }
+}
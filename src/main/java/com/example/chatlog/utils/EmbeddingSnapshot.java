@@ -0,0 +1,223 @@
+package com.example.chatlog.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * File snapshot nhị phân của kho embeddings, được memory-map khi đọc
+ *
+ * Layout (little-endian):
+ * <pre>
+ * HEADER (48 bytes)
+ *   int   magic        "KBS1"
+ *   int   version
+ *   int   dimensions
+ *   int   count
+ *   long  createdAt    (epoch millis)
+ *   long  bodyLength
+ *   long  checksum     (CRC32 của BODY)
+ *   long  reserved
+ * BODY
+ *   float32[count * dimensions]   ma trận vector liên tục
+ *   int64[count + 1]              offsets vào metadata blob
+ *   byte[]                        metadata blob (mỗi entry một đoạn UTF-8 JSON)
+ * </pre>
+ */
+public class EmbeddingSnapshot {
+
+    public static final int MAGIC = 0x3153424B; // "KBS1" little-endian
+    public static final int VERSION = 1;
+    private static final int HEADER_SIZE = 48;
+
+    private final int dimensions;
+    private final int count;
+    private final long createdAt;
+    private final FloatBuffer matrix;
+    private final LongBuffer offsets;
+    private final ByteBuffer metadataBlob;
+
+    private EmbeddingSnapshot(int dimensions, int count, long createdAt,
+                              FloatBuffer matrix, LongBuffer offsets, ByteBuffer metadataBlob) {
+        this.dimensions = dimensions;
+        this.count = count;
+        this.createdAt = createdAt;
+        this.matrix = matrix;
+        this.offsets = offsets;
+        this.metadataBlob = metadataBlob;
+    }
+
+    public int dimensions() {
+        return dimensions;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public long createdAt() {
+        return createdAt;
+    }
+
+    /**
+     * Copy vector thứ i ra mảng mới
+     */
+    public float[] vector(int i) {
+        float[] result = new float[dimensions];
+        matrix.get(i * dimensions, result, 0, dimensions);
+        return result;
+    }
+
+    /**
+     * Dot product giữa vector thứ i và query, tính trực tiếp trên vùng nhớ đã map (không copy)
+     */
+    public float dot(int i, float[] query) {
+        int base = i * dimensions;
+        float sum = 0f;
+        for (int d = 0; d < dimensions; d++) {
+            sum += matrix.get(base + d) * query[d];
+        }
+        return sum;
+    }
+
+    /**
+     * Metadata (UTF-8 JSON) của entry thứ i
+     */
+    public byte[] metadata(int i) {
+        long start = offsets.get(i);
+        long end = offsets.get(i + 1);
+        byte[] result = new byte[(int) (end - start)];
+        metadataBlob.get((int) start, result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * Memory-map file snapshot và kiểm tra magic, version, checksum
+     *
+     * @throws IOException nếu file không hợp lệ hoặc bị hỏng
+     */
+    public static EmbeddingSnapshot open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException("Snapshot file too small: " + size + " bytes");
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+            int magic = mapped.getInt(0);
+            int version = mapped.getInt(4);
+            int dimensions = mapped.getInt(8);
+            int count = mapped.getInt(12);
+            long createdAt = mapped.getLong(16);
+            long bodyLength = mapped.getLong(24);
+            long checksum = mapped.getLong(32);
+
+            if (magic != MAGIC) {
+                throw new IOException("Invalid snapshot magic: " + Integer.toHexString(magic));
+            }
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version: " + version);
+            }
+            if (HEADER_SIZE + bodyLength != size) {
+                throw new IOException("Snapshot size mismatch: expected " + (HEADER_SIZE + bodyLength) + ", got " + size);
+            }
+
+            ByteBuffer body = mapped.slice(HEADER_SIZE, (int) bodyLength).order(ByteOrder.LITTLE_ENDIAN);
+            CRC32 crc = new CRC32();
+            crc.update(body.duplicate());
+            if (crc.getValue() != checksum) {
+                throw new IOException("Snapshot checksum mismatch");
+            }
+
+            int matrixBytes = count * dimensions * Float.BYTES;
+            int offsetsBytes = (count + 1) * Long.BYTES;
+            FloatBuffer matrix = body.slice(0, matrixBytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            LongBuffer offsets = body.slice(matrixBytes, offsetsBytes).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+            ByteBuffer metadataBlob = body.slice(matrixBytes + offsetsBytes, (int) bodyLength - matrixBytes - offsetsBytes);
+
+            return new EmbeddingSnapshot(dimensions, count, createdAt, matrix, offsets, metadataBlob);
+        }
+    }
+
+    /**
+     * Ghi snapshot ra file (ghi file tạm rồi rename để reader không bao giờ thấy file ghi dở)
+     *
+     * @param vectors Danh sách vector, cùng số chiều
+     * @param metadata Metadata UTF-8 JSON tương ứng từng vector
+     */
+    public static void write(Path path, int dimensions, List<float[]> vectors, List<byte[]> metadata) throws IOException {
+        if (vectors.size() != metadata.size()) {
+            throw new IllegalArgumentException("vectors and metadata must have the same size");
+        }
+        int count = vectors.size();
+        long metadataBytes = 0;
+        for (byte[] m : metadata) {
+            metadataBytes += m.length;
+        }
+        long bodyLength = (long) count * dimensions * Float.BYTES + (long) (count + 1) * Long.BYTES + metadataBytes;
+        if (HEADER_SIZE + bodyLength > Integer.MAX_VALUE) {
+            throw new IOException("Snapshot too large: " + bodyLength + " bytes");
+        }
+
+        ByteBuffer body = ByteBuffer.allocate((int) bodyLength).order(ByteOrder.LITTLE_ENDIAN);
+        for (float[] vector : vectors) {
+            if (vector.length != dimensions) {
+                throw new IllegalArgumentException("Vector must have " + dimensions + " dimensions");
+            }
+            for (float v : vector) {
+                body.putFloat(v);
+            }
+        }
+        long offset = 0;
+        body.putLong(offset);
+        for (byte[] m : metadata) {
+            offset += m.length;
+            body.putLong(offset);
+        }
+        for (byte[] m : metadata) {
+            body.put(m);
+        }
+        body.flip();
+
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(dimensions);
+        header.putInt(count);
+        header.putLong(System.currentTimeMillis());
+        header.putLong(bodyLength);
+        header.putLong(crc.getValue());
+        header.putLong(0L);
+        header.flip();
+
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            while (body.hasRemaining()) {
+                channel.write(body);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.chatlog.utils;
+
+import com.example.chatlog.dto.DataExample;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Thư viện ví dụ bất biến đã parse từ các file kho tri thức, index sẵn theo question / keyword / scenario
+ * Key tra cứu được chuẩn hóa bằng TextNormalizer (không phân biệt hoa thường, dấu tiếng Việt)
+ *
+ * Không sửa tại chỗ: reload tạo instance mới rồi swap nguyên khối
+ */
+public final class ExampleLibrary {
+
+    private static final ExampleLibrary EMPTY = new ExampleLibrary(Map.of());
+
+    private final Map<String, List<DataExample>> bySourceFile;
+    private final List<DataExample> examples;
+    private final Map<String, DataExample> byQuestion;
+    private final Map<String, List<DataExample>> byKeyword;
+    private final Map<String, List<DataExample>> byScenario;
+
+    private ExampleLibrary(Map<String, List<DataExample>> bySourceFile) {
+        Map<String, List<DataExample>> files = new LinkedHashMap<>();
+        List<DataExample> all = new ArrayList<>();
+        Map<String, DataExample> questions = new HashMap<>();
+        Map<String, List<DataExample>> keywords = new HashMap<>();
+        Map<String, List<DataExample>> scenarios = new HashMap<>();
+
+        for (Map.Entry<String, List<DataExample>> file : bySourceFile.entrySet()) {
+            files.put(file.getKey(), List.copyOf(file.getValue()));
+            for (DataExample example : file.getValue()) {
+                all.add(example);
+                if (example.getQuestion() != null) {
+                    questions.putIfAbsent(TextNormalizer.normalize(example.getQuestion()), example);
+                }
+                if (example.getKeywords() != null) {
+                    for (String keyword : example.getKeywords()) {
+                        if (keyword != null && !keyword.isBlank()) {
+                            keywords.computeIfAbsent(TextNormalizer.normalize(keyword), k -> new ArrayList<>()).add(example);
+                        }
+                    }
+                }
+                if (example.getScenario() != null) {
+                    scenarios.computeIfAbsent(TextNormalizer.normalize(example.getScenario()), k -> new ArrayList<>()).add(example);
+                }
+            }
+        }
+
+        this.bySourceFile = Collections.unmodifiableMap(files);
+        this.examples = List.copyOf(all);
+        this.byQuestion = Map.copyOf(questions);
+        this.byKeyword = freeze(keywords);
+        this.byScenario = freeze(scenarios);
+    }
+
+    /**
+     * @param bySourceFile Ví dụ đã parse theo từng file (giữ thứ tự file)
+     */
+    public static ExampleLibrary of(Map<String, List<DataExample>> bySourceFile) {
+        return new ExampleLibrary(bySourceFile);
+    }
+
+    public static ExampleLibrary empty() {
+        return EMPTY;
+    }
+
+    public List<DataExample> examples() {
+        return examples;
+    }
+
+    public List<String> sourceFiles() {
+        return List.copyOf(bySourceFile.keySet());
+    }
+
+    public List<DataExample> examples(String sourceFile) {
+        return bySourceFile.getOrDefault(sourceFile, List.of());
+    }
+
+    public DataExample findByQuestion(String question) {
+        return byQuestion.get(TextNormalizer.normalize(question));
+    }
+
+    public List<DataExample> findByKeyword(String keyword) {
+        return byKeyword.getOrDefault(TextNormalizer.normalize(keyword), List.of());
+    }
+
+    public List<DataExample> findByScenario(String scenario) {
+        return byScenario.getOrDefault(TextNormalizer.normalize(scenario), List.of());
+    }
+
+    public int size() {
+        return examples.size();
+    }
+
+    private static Map<String, List<DataExample>> freeze(Map<String, List<DataExample>> index) {
+        Map<String, List<DataExample>> frozen = new HashMap<>(index.size() * 2);
+        for (Map.Entry<String, List<DataExample>> entry : index.entrySet()) {
+            frozen.put(entry.getKey(), List.copyOf(entry.getValue()));
+        }
+        return Map.copyOf(frozen);
+    }
+}
@@ -0,0 +1,384 @@
+package com.example.chatlog.utils;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Chỉ mục HNSW (Hierarchical Navigable Small World) chạy trong bộ nhớ JVM
+ * Dùng cosine similarity: vector được chuẩn hóa khi thêm vào nên similarity = dot product
+ *
+ * Thread-safe: add/markDeleted lấy write lock, search lấy read lock
+ */
+public class HnswIndex {
+
+    /**
+     * Kết quả tìm kiếm: node id trong index và cosine similarity với query
+     */
+    public record Neighbor(int node, float similarity) {
+    }
+
+    private static final class Node {
+        final float[] vector;
+        final int level;
+        final int[][] links;
+        final int[] linkCounts;
+        boolean deleted;
+
+        Node(float[] vector, int level, int m, int maxM0) {
+            this.vector = vector;
+            this.level = level;
+            this.links = new int[level + 1][];
+            this.linkCounts = new int[level + 1];
+            for (int l = 0; l <= level; l++) {
+                // +1 để có chỗ tạm trước khi shrink danh sách láng giềng
+                links[l] = new int[(l == 0 ? maxM0 : m) + 1];
+            }
+        }
+    }
+
+    private final int dimensions;
+    private final int m;
+    private final int maxM0;
+    private final int efConstruction;
+    private final double levelMultiplier;
+    private final Random random = new Random(42);
+    private final List<Node> nodes = new ArrayList<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+    private int deletedCount = 0;
+
+    /**
+     * @param dimensions Số chiều vector (1536 cho text-embedding-3-small)
+     * @param m Số láng giềng tối đa mỗi node ở các tầng trên (tầng 0 dùng 2*m)
+     * @param efConstruction Kích thước danh sách ứng viên khi xây dựng
+     */
+    public HnswIndex(int dimensions, int m, int efConstruction) {
+        if (dimensions <= 0 || m < 2 || efConstruction < 1) {
+            throw new IllegalArgumentException("Invalid HNSW parameters: dimensions=" + dimensions
+                + ", m=" + m + ", efConstruction=" + efConstruction);
+        }
+        this.dimensions = dimensions;
+        this.m = m;
+        this.maxM0 = m * 2;
+        this.efConstruction = efConstruction;
+        this.levelMultiplier = 1.0 / Math.log(m);
+    }
+
+    public int dimensions() {
+        return dimensions;
+    }
+
+    /**
+     * Số node còn hiệu lực (không tính node đã đánh dấu xóa)
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return nodes.size() - deletedCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Thêm vector vào index
+     *
+     * @return node id, dùng để ánh xạ ngược sang bản ghi gốc
+     */
+    public int add(float[] vector) {
+        if (vector == null || vector.length != dimensions) {
+            throw new IllegalArgumentException("Vector must have " + dimensions + " dimensions");
+        }
+        float[] normalized = normalize(vector);
+
+        lock.writeLock().lock();
+        try {
+            int level = randomLevel();
+            int nodeId = nodes.size();
+            Node node = new Node(normalized, level, m, maxM0);
+            nodes.add(node);
+
+            if (entryPoint < 0) {
+                entryPoint = nodeId;
+                maxLevel = level;
+                return nodeId;
+            }
+
+            int current = entryPoint;
+            // Tầng cao hơn level của node mới: chỉ greedy đi xuống
+            for (int l = maxLevel; l > level; l--) {
+                current = greedyClosest(normalized, current, l);
+            }
+
+            for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+                PriorityQueue<Neighbor> candidates = searchLayer(normalized, current, efConstruction, l);
+                List<Neighbor> selected = selectNeighbors(candidates, l == 0 ? maxM0 : m);
+                for (Neighbor neighbor : selected) {
+                    connect(nodeId, neighbor.node(), l);
+                    connect(neighbor.node(), nodeId, l);
+                }
+                current = bestOf(candidates);
+            }
+
+            if (level > maxLevel) {
+                maxLevel = level;
+                entryPoint = nodeId;
+            }
+            return nodeId;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Bản sao vector (đã chuẩn hóa) của node, null nếu node không tồn tại
+     */
+    public float[] vector(int nodeId) {
+        lock.readLock().lock();
+        try {
+            return nodeId >= 0 && nodeId < nodes.size() ? nodes.get(nodeId).vector.clone() : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Đánh dấu xóa một node (vẫn dùng để duyệt graph nhưng không trả về trong kết quả)
+     */
+    public void markDeleted(int nodeId) {
+        lock.writeLock().lock();
+        try {
+            if (nodeId >= 0 && nodeId < nodes.size() && !nodes.get(nodeId).deleted) {
+                nodes.get(nodeId).deleted = true;
+                deletedCount++;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Tìm top-K vector gần nhất với query
+     *
+     * @param query Vector truy vấn (không cần chuẩn hóa trước)
+     * @param k Số kết quả mong muốn
+     * @param ef Kích thước danh sách ứng viên khi tìm (lớn hơn = chính xác hơn, chậm hơn)
+     * @return Danh sách kết quả sắp xếp theo similarity giảm dần
+     */
+    public List<Neighbor> search(float[] query, int k, int ef) {
+        if (query == null || query.length != dimensions || k <= 0) {
+            return List.of();
+        }
+        float[] normalized = normalize(query);
+
+        lock.readLock().lock();
+        try {
+            if (entryPoint < 0) {
+                return List.of();
+            }
+            int current = entryPoint;
+            for (int l = maxLevel; l > 0; l--) {
+                current = greedyClosest(normalized, current, l);
+            }
+            // Mở rộng ef theo số node đã xóa để vẫn đủ k kết quả hợp lệ
+            int effectiveEf = Math.max(ef, k) + Math.min(deletedCount, Math.max(ef, k));
+            PriorityQueue<Neighbor> candidates = searchLayer(normalized, current, effectiveEf, 0);
+
+            List<Neighbor> results = new ArrayList<>(candidates);
+            results.removeIf(n -> nodes.get(n.node()).deleted);
+            results.sort(Comparator.comparingDouble(Neighbor::similarity).reversed());
+            return results.size() > k ? new ArrayList<>(results.subList(0, k)) : results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int randomLevel() {
+        double r = random.nextDouble();
+        return (int) Math.floor(-Math.log(Math.max(r, 1e-12)) * levelMultiplier);
+    }
+
+    private int greedyClosest(float[] query, int start, int level) {
+        int current = start;
+        float currentSim = dot(query, nodes.get(current).vector);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            Node node = nodes.get(current);
+            if (node.level < level) {
+                break;
+            }
+            int[] links = node.links[level];
+            for (int i = 0; i < node.linkCounts[level]; i++) {
+                int candidate = links[i];
+                float sim = dot(query, nodes.get(candidate).vector);
+                if (sim > currentSim) {
+                    currentSim = sim;
+                    current = candidate;
+                    changed = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Beam search trên một tầng, trả về min-heap (theo similarity) gồm tối đa ef phần tử tốt nhất
+     */
+    private PriorityQueue<Neighbor> searchLayer(float[] query, int start, int ef, int level) {
+        BitSet visited = new BitSet(nodes.size());
+        PriorityQueue<Neighbor> candidates = new PriorityQueue<>(
+            Comparator.comparingDouble(Neighbor::similarity).reversed());
+        PriorityQueue<Neighbor> results = new PriorityQueue<>(
+            Comparator.comparingDouble(Neighbor::similarity));
+
+        Neighbor first = new Neighbor(start, dot(query, nodes.get(start).vector));
+        visited.set(start);
+        candidates.add(first);
+        results.add(first);
+
+        while (!candidates.isEmpty()) {
+            Neighbor closest = candidates.poll();
+            if (results.size() >= ef && closest.similarity() < results.peek().similarity()) {
+                break;
+            }
+            Node node = nodes.get(closest.node());
+            if (node.level < level) {
+                continue;
+            }
+            int[] links = node.links[level];
+            for (int i = 0; i < node.linkCounts[level]; i++) {
+                int candidate = links[i];
+                if (visited.get(candidate)) {
+                    continue;
+                }
+                visited.set(candidate);
+                float sim = dot(query, nodes.get(candidate).vector);
+                if (results.size() < ef || sim > results.peek().similarity()) {
+                    Neighbor neighbor = new Neighbor(candidate, sim);
+                    candidates.add(neighbor);
+                    results.add(neighbor);
+                    if (results.size() > ef) {
+                        results.poll();
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Heuristic chọn láng giềng của HNSW: ưu tiên ứng viên không bị "che" bởi láng giềng đã chọn,
+     * giúp graph giữ được kết nối giữa các cụm
+     */
+    private List<Neighbor> selectNeighbors(PriorityQueue<Neighbor> candidates, int maxNeighbors) {
+        List<Neighbor> sorted = new ArrayList<>(candidates);
+        sorted.sort(Comparator.comparingDouble(Neighbor::similarity).reversed());
+
+        List<Neighbor> selected = new ArrayList<>(maxNeighbors);
+        List<Neighbor> skipped = new ArrayList<>();
+        for (Neighbor candidate : sorted) {
+            if (selected.size() >= maxNeighbors) {
+                break;
+            }
+            float[] candidateVector = nodes.get(candidate.node()).vector;
+            boolean dominated = false;
+            for (Neighbor chosen : selected) {
+                if (dot(candidateVector, nodes.get(chosen.node()).vector) > candidate.similarity()) {
+                    dominated = true;
+                    break;
+                }
+            }
+            if (dominated) {
+                skipped.add(candidate);
+            } else {
+                selected.add(candidate);
+            }
+        }
+        // Bù lại bằng các ứng viên bị loại nếu chưa đủ số láng giềng
+        for (Neighbor candidate : skipped) {
+            if (selected.size() >= maxNeighbors) {
+                break;
+            }
+            selected.add(candidate);
+        }
+        return selected;
+    }
+
+    private void connect(int from, int to, int level) {
+        if (from == to) {
+            return;
+        }
+        Node node = nodes.get(from);
+        if (node.level < level) {
+            return;
+        }
+        int[] links = node.links[level];
+        int count = node.linkCounts[level];
+        for (int i = 0; i < count; i++) {
+            if (links[i] == to) {
+                return;
+            }
+        }
+        links[count] = to;
+        count++;
+
+        int maxNeighbors = level == 0 ? maxM0 : m;
+        if (count > maxNeighbors) {
+            // Quá số láng giềng cho phép: giữ lại các láng giềng tốt nhất theo heuristic
+            PriorityQueue<Neighbor> pool = new PriorityQueue<>(Comparator.comparingDouble(Neighbor::similarity));
+            for (int i = 0; i < count; i++) {
+                pool.add(new Neighbor(links[i], dot(node.vector, nodes.get(links[i]).vector)));
+            }
+            List<Neighbor> kept = selectNeighbors(pool, maxNeighbors);
+            count = kept.size();
+            for (int i = 0; i < count; i++) {
+                links[i] = kept.get(i).node();
+            }
+        }
+        node.linkCounts[level] = count;
+    }
+
+    private int bestOf(PriorityQueue<Neighbor> candidates) {
+        int best = -1;
+        float bestSim = Float.NEGATIVE_INFINITY;
+        for (Neighbor n : candidates) {
+            if (n.similarity() > bestSim) {
+                bestSim = n.similarity();
+                best = n.node();
+            }
+        }
+        return best;
+    }
+
+    private static float dot(float[] a, float[] b) {
+        float sum = 0f;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    private static float[] normalize(float[] vector) {
+        double norm = 0;
+        for (float v : vector) {
+            norm += v * v;
+        }
+        norm = Math.sqrt(norm);
+        float[] result = new float[vector.length];
+        if (norm == 0) {
+            return result;
+        }
+        for (int i = 0; i < vector.length; i++) {
+            result[i] = (float) (vector[i] / norm);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.chatlog.utils;
+
+/**
+ * Tích vô hướng giữa vector int8 (đã lượng tử hóa) và query float32
+ *
+ * Bản SIMD dùng jdk.incubator.vector chỉ được nạp khi JVM chạy với --add-modules jdk.incubator.vector,
+ * nếu không thì dùng vòng lặp scalar
+ */
+public interface Int8DotProduct {
+
+    /**
+     * Σ codes[offset + i] * query[i] với i = 0..dimensions-1
+     */
+    float dot(byte[] codes, int offset, float[] query, int dimensions);
+
+    /**
+     * Tên implementation, dùng để log
+     */
+    String name();
+
+    Int8DotProduct SCALAR = new Int8DotProduct() {
+        @Override
+        public float dot(byte[] codes, int offset, float[] query, int dimensions) {
+            float sum = 0f;
+            for (int i = 0; i < dimensions; i++) {
+                sum += codes[offset + i] * query[i];
+            }
+            return sum;
+        }
+
+        @Override
+        public String name() {
+            return "scalar";
+        }
+    };
+
+    /**
+     * Chọn implementation nhanh nhất có trên JVM hiện tại
+     */
+    static Int8DotProduct best() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                return (Int8DotProduct) Class.forName("com.example.chatlog.utils.VectorApiInt8DotProduct")
+                    .getDeclaredConstructor().newInstance();
+            } catch (Throwable e) {
+                System.err.println("[Int8DotProduct] ⚠️ Không khởi tạo được Vector API, dùng scalar: " + e.getMessage());
+            }
+        }
+        return SCALAR;
+    }
+}
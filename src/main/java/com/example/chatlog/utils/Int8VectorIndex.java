@@ -0,0 +1,233 @@
+package com.example.chatlog.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntFunction;
+
+/**
+ * Chỉ mục vector lượng tử hóa int8 (scalar quantization), quét toàn bộ + rerank bằng float32
+ *
+ * - Mỗi vector được chuẩn hóa rồi mã hóa thành int8 với scale/min riêng: v ≈ (code + 128) * scale + min
+ * - Bộ nhớ: 1 byte/chiều thay vì 4 byte (1536 chiều ≈ 1.5KB/vector)
+ * - Điểm xấp xỉ: dot(v, q) ≈ scale * Σ code·q + (128 * scale + min) * Σ q, phần Σ code·q chạy bằng SIMD nếu có
+ * - Top ứng viên được tính lại chính xác bằng vector float32 (thường đọc từ snapshot memory-map, không nằm trên heap)
+ *
+ * Thread-safe: add/markDeleted lấy write lock, search lấy read lock
+ */
+public class Int8VectorIndex {
+
+    private final int dimensions;
+    private final Int8DotProduct scorer;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private byte[] codes;
+    private float[] scales;
+    private float[] mins;
+    private final BitSet deleted = new BitSet();
+    private int count = 0;
+    private int deletedCount = 0;
+
+    public Int8VectorIndex(int dimensions, int initialCapacity, Int8DotProduct scorer) {
+        if (dimensions <= 0) {
+            throw new IllegalArgumentException("Invalid dimensions: " + dimensions);
+        }
+        int capacity = Math.max(16, initialCapacity);
+        this.dimensions = dimensions;
+        this.scorer = scorer;
+        this.codes = new byte[capacity * dimensions];
+        this.scales = new float[capacity];
+        this.mins = new float[capacity];
+    }
+
+    public int dimensions() {
+        return dimensions;
+    }
+
+    public String scorerName() {
+        return scorer.name();
+    }
+
+    /**
+     * Số vector còn hiệu lực (không tính vector đã đánh dấu xóa)
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return count - deletedCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Dung lượng heap của phần dữ liệu vector (bytes)
+     */
+    public long memoryBytes() {
+        lock.readLock().lock();
+        try {
+            return (long) count * dimensions + (long) count * 2 * Float.BYTES;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Lượng tử hóa và thêm vector, trả về node id (tăng dần từ 0)
+     */
+    public int add(float[] vector) {
+        if (vector == null || vector.length != dimensions) {
+            throw new IllegalArgumentException("Vector must have " + dimensions + " dimensions");
+        }
+        float[] normalized = normalize(vector);
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        for (float v : normalized) {
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        float scale = (max - min) / 255f;
+        float inverseScale = scale > 0 ? 1f / scale : 0f;
+
+        lock.writeLock().lock();
+        try {
+            ensureCapacity(count + 1);
+            int base = count * dimensions;
+            for (int i = 0; i < dimensions; i++) {
+                int level = Math.round((normalized[i] - min) * inverseScale);
+                codes[base + i] = (byte) (Math.max(0, Math.min(255, level)) - 128);
+            }
+            scales[count] = scale;
+            mins[count] = min;
+            return count++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Giải mã vector (đã chuẩn hóa, sai số lượng tử hóa) của node, null nếu node không tồn tại
+     */
+    public float[] dequantize(int node) {
+        lock.readLock().lock();
+        try {
+            if (node < 0 || node >= count) {
+                return null;
+            }
+            float[] result = new float[dimensions];
+            int base = node * dimensions;
+            for (int i = 0; i < dimensions; i++) {
+                result[i] = (codes[base + i] + 128) * scales[node] + mins[node];
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void markDeleted(int node) {
+        lock.writeLock().lock();
+        try {
+            if (node >= 0 && node < count && !deleted.get(node)) {
+                deleted.set(node);
+                deletedCount++;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Tìm top-K theo cosine similarity
+     *
+     * @param query Vector query (không cần chuẩn hóa trước)
+     * @param k Số kết quả
+     * @param rerankCandidates Số ứng viên (>= k) lấy từ điểm int8 để tính lại bằng float32
+     * @param fullPrecision Trả về vector float32 gốc của node; null = không rerank
+     */
+    public List<HnswIndex.Neighbor> search(float[] query, int k, int rerankCandidates,
+                                           IntFunction<float[]> fullPrecision) {
+        if (query == null || query.length != dimensions || k <= 0) {
+            return List.of();
+        }
+        float[] q = normalize(query);
+        float querySum = 0f;
+        for (float v : q) {
+            querySum += v;
+        }
+        int candidates = Math.max(k, rerankCandidates);
+        PriorityQueue<HnswIndex.Neighbor> best = new PriorityQueue<>(
+            Comparator.comparingDouble(HnswIndex.Neighbor::similarity));
+
+        lock.readLock().lock();
+        try {
+            for (int node = 0; node < count; node++) {
+                if (deleted.get(node)) {
+                    continue;
+                }
+                float scale = scales[node];
+                float score = scale * scorer.dot(codes, node * dimensions, q, dimensions)
+                    + (128f * scale + mins[node]) * querySum;
+                if (best.size() < candidates) {
+                    best.add(new HnswIndex.Neighbor(node, score));
+                } else if (score > best.peek().similarity()) {
+                    best.poll();
+                    best.add(new HnswIndex.Neighbor(node, score));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        List<HnswIndex.Neighbor> results = new ArrayList<>(best.size());
+        for (HnswIndex.Neighbor candidate : best) {
+            float[] full = fullPrecision != null ? fullPrecision.apply(candidate.node()) : null;
+            results.add(full != null ? new HnswIndex.Neighbor(candidate.node(), cosine(full, q)) : candidate);
+        }
+        results.sort(Comparator.comparingDouble(HnswIndex.Neighbor::similarity).reversed());
+        return results.size() > k ? new ArrayList<>(results.subList(0, k)) : results;
+    }
+
+    private void ensureCapacity(int required) {
+        if (required <= scales.length) {
+            return;
+        }
+        int capacity = Math.max(required, scales.length * 2);
+        codes = Arrays.copyOf(codes, capacity * dimensions);
+        scales = Arrays.copyOf(scales, capacity);
+        mins = Arrays.copyOf(mins, capacity);
+    }
+
+    /**
+     * Cosine giữa vector gốc (chưa chuẩn hóa) và query đã chuẩn hóa
+     */
+    private static float cosine(float[] vector, float[] normalizedQuery) {
+        float dot = 0f;
+        float norm = 0f;
+        for (int i = 0; i < vector.length; i++) {
+            dot += vector[i] * normalizedQuery[i];
+            norm += vector[i] * vector[i];
+        }
+        return norm > 0 ? dot / (float) Math.sqrt(norm) : 0f;
+    }
+
+    private static float[] normalize(float[] vector) {
+        float norm = 0f;
+        for (float v : vector) {
+            norm += v * v;
+        }
+        float[] result = new float[vector.length];
+        if (norm == 0f) {
+            return result;
+        }
+        float inverse = (float) (1.0 / Math.sqrt(norm));
+        for (int i = 0; i < vector.length; i++) {
+            result[i] = vector[i] * inverse;
+        }
+        return result;
+    }
+}
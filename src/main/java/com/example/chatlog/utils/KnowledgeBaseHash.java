@@ -0,0 +1,36 @@
+package com.example.chatlog.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Hash nội dung của một entry trong kho tri thức: SHA-256(question + query DSL + keywords)
+ * Lưu ở ai_embedding.metadata.content_hash để đồng bộ tăng dần: chỉ embed entry có hash chưa có trong DB
+ */
+public class KnowledgeBaseHash {
+
+    public static final String METADATA_KEY = "content_hash";
+
+    /**
+     * @param question Câu hỏi
+     * @param queryDslJson Query DSL đã serialize (cùng cách serialize với metadata.query_dsl)
+     * @param keywords Danh sách keywords (có thể null)
+     */
+    public static String of(String question, String queryDslJson, List<String> keywords) {
+        StringBuilder source = new StringBuilder();
+        source.append(question != null ? question : "").append('\u0000');
+        source.append(queryDslJson != null ? queryDslJson : "").append('\u0000');
+        if (keywords != null) {
+            source.append(String.join("\u0001", keywords));
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(source.toString().getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 không khả dụng", e);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.chatlog.utils;
+
+import com.example.chatlog.dto.ScoredEmbedding;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maximal Marginal Relevance: chọn lần lượt kết quả vừa liên quan tới query vừa khác các kết quả đã chọn
+ *
+ * MMR(d) = λ * score(d) - (1 - λ) * max cos(d, s) với s thuộc tập đã chọn
+ * λ = 1: chỉ xét độ liên quan (giữ nguyên thứ tự), λ nhỏ: ưu tiên đa dạng
+ */
+public class MaximalMarginalRelevance {
+
+    /**
+     * @param candidates Ứng viên đã sắp xếp theo score giảm dần
+     * @param k Số kết quả cần chọn
+     * @param lambda Trọng số độ liên quan trong [0, 1]
+     */
+    public static List<ScoredEmbedding> select(List<ScoredEmbedding> candidates, int k, double lambda) {
+        List<ScoredEmbedding> remaining = new ArrayList<>(candidates);
+        List<ScoredEmbedding> selected = new ArrayList<>(Math.min(k, candidates.size()));
+        // maxRedundancy[i]: cosine lớn nhất giữa remaining[i] và các kết quả đã chọn
+        List<Double> maxRedundancy = new ArrayList<>(remaining.size());
+        for (int i = 0; i < remaining.size(); i++) {
+            maxRedundancy.add(0.0);
+        }
+
+        while (selected.size() < k && !remaining.isEmpty()) {
+            int bestIndex = 0;
+            double bestScore = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < remaining.size(); i++) {
+                double mmr = lambda * remaining.get(i).score() - (1 - lambda) * maxRedundancy.get(i);
+                if (mmr > bestScore) {
+                    bestScore = mmr;
+                    bestIndex = i;
+                }
+            }
+            ScoredEmbedding chosen = remaining.remove(bestIndex);
+            maxRedundancy.remove(bestIndex);
+            selected.add(chosen);
+
+            for (int i = 0; i < remaining.size(); i++) {
+                double redundancy = cosine(chosen.vector(), remaining.get(i).vector());
+                if (redundancy > maxRedundancy.get(i)) {
+                    maxRedundancy.set(i, redundancy);
+                }
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Cosine similarity, 0 nếu thiếu vector
+     */
+    public static double cosine(float[] a, float[] b) {
+        if (a == null || b == null || a.length != b.length) {
+            return 0.0;
+        }
+        double dot = 0;
+        double normA = 0;
+        double normB = 0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+            normA += a[i] * a[i];
+            normB += b[i] * b[i];
+        }
+        return normA > 0 && normB > 0 ? dot / Math.sqrt(normA * normB) : 0.0;
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.chatlog.utils;
+
+import com.example.chatlog.dto.KnowledgeBaseExample;
+import com.example.chatlog.dto.ScoredEmbedding;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.vectorstore.SimpleVectorStore;
+import org.springframework.ai.vectorstore.SimpleVectorStoreContent;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * SimpleVectorStore nạp thẳng vector đã lưu trong ai_embedding (add() của SimpleVectorStore luôn gọi embedding API)
+ *
+ * - put(): thêm bản ghi kèm vector sẵn có, id document = id ai_embedding
+ * - retainOnly(): bỏ các document không còn trong DB sau một lần hydrate
+ * - search(): top-K cosine theo query vector đã có (similaritySearch(SearchRequest) sẽ embed lại câu hỏi)
+ */
+public class PreEmbeddedVectorStore extends SimpleVectorStore {
+
+    private volatile boolean hydrated;
+
+    public PreEmbeddedVectorStore(EmbeddingModel embeddingModel) {
+        super(SimpleVectorStore.builder(embeddingModel));
+    }
+
+    public void put(KnowledgeBaseExample example, float[] vector) {
+        Map<String, Object> metadata = new HashMap<>();
+        putIfNotNull(metadata, "question", example.question());
+        putIfNotNull(metadata, "scenario", example.scenario());
+        putIfNotNull(metadata, "phase", example.phase());
+        putIfNotNull(metadata, "query_dsl", example.queryDsl());
+        String id = example.id().toString();
+        store.put(id, new SimpleVectorStoreContent(id, example.content(), metadata, vector));
+    }
+
+    public void retainOnly(Set<String> ids) {
+        store.keySet().retainAll(ids);
+    }
+
+    public void markHydrated() {
+        hydrated = true;
+    }
+
+    /**
+     * Đã nạp toàn bộ bản ghi từ DB ít nhất một lần (trước đó search() chưa đủ dữ liệu)
+     */
+    public boolean isHydrated() {
+        return hydrated;
+    }
+
+    public int size() {
+        return store.size();
+    }
+
+    /**
+     * Top-K theo cosine similarity, giảm dần, kèm vector của document (cho MMR)
+     */
+    public List<ScoredEmbedding> search(float[] queryEmbedding, int topK) {
+        PriorityQueue<ScoredEmbedding> best = new PriorityQueue<>(Comparator.comparingDouble(ScoredEmbedding::similarity));
+        for (SimpleVectorStoreContent content : store.values()) {
+            double similarity = MaximalMarginalRelevance.cosine(queryEmbedding, content.getEmbedding());
+            if (best.size() < topK) {
+                best.add(ScoredEmbedding.of(toExample(content), similarity, content.getEmbedding()));
+            } else if (similarity > best.peek().similarity()) {
+                best.poll();
+                best.add(ScoredEmbedding.of(toExample(content), similarity, content.getEmbedding()));
+            }
+        }
+        List<ScoredEmbedding> results = new ArrayList<>(best);
+        results.sort(Comparator.comparingDouble(ScoredEmbedding::similarity).reversed());
+        return results;
+    }
+
+    private static KnowledgeBaseExample toExample(SimpleVectorStoreContent content) {
+        Map<String, Object> metadata = content.getMetadata();
+        return new KnowledgeBaseExample(
+            UUID.fromString(content.getId()),
+            asString(metadata.get("question")),
+            asString(metadata.get("scenario")),
+            asString(metadata.get("phase")),
+            asString(metadata.get("query_dsl")),
+            content.getText()
+        );
+    }
+
+    private static void putIfNotNull(Map<String, Object> metadata, String key, String value) {
+        if (value != null) {
+            metadata.put(key, value);
+        }
+    }
+
+    private static String asString(Object value) {
+        return value != null ? value.toString() : null;
+    }
+}
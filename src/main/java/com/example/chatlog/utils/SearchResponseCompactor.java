@@ -0,0 +1,661 @@
+package com.example.chatlog.utils;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Đọc response _search bằng Jackson streaming (không dựng cây JSON) và chuyển thành bảng gọn cho LLM
+ *
+ * - shape(): chỉ đếm hits / kiểm tra aggregations / lỗi, bỏ qua toàn bộ nội dung (thay cho contains("\"hits\":[]"))
+ * - compact(): hits → bảng cột (field phẳng dạng a.b.c), cột có cùng giá trị ở mọi dòng tách thành "constant",
+ *   dòng trùng nhau gộp lại kèm ×n; bucket aggregation → các dòng phẳng (key cha | key con | doc_count | metric)
+ *
+ * Bộ nhớ có giới hạn: tối đa maxRows dòng hits và maxRows dòng aggregation, mỗi ô tối đa MAX_CELL_CHARS ký tự,
+ * tối đa MAX_COLUMNS cột; phần vượt chỉ được đếm. Text kết quả cắt ở maxChars
+ */
+public class SearchResponseCompactor {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final int MAX_CELL_CHARS = 300;
+    private static final int MAX_COLUMNS = 100;
+    private static final int MAX_SHARD_FAILURE_REASONS = 5;
+
+    /**
+     * Hình dạng response: parsed = false nếu không phải JSON object
+     * failedShards > 0: một phần shard lỗi (vd. xung đột mapping giữa các index logs-*), kết quả có thể thiếu
+     */
+    public record Shape(boolean parsed, boolean error, long totalHits, int hitCount, boolean hasAggregations,
+                        int failedShards) {
+
+        // Truy vấn thành công nhưng không có hits và không có aggregations
+        public boolean isEmpty() {
+            return parsed && !error && hitCount == 0 && !hasAggregations;
+        }
+    }
+
+    /**
+     * @param text Bản gọn gửi cho LLM
+     * @param totalHits hits.total (-1 nếu không có)
+     * @param hitCount Số hits trong response (kể cả phần vượt maxRows)
+     * @param aggregationRows Số dòng aggregation (kể cả phần vượt maxRows)
+     * @param truncated Có phần bị bỏ do vượt maxRows / maxChars
+     * @param failedShards Số shard lỗi (_shards.failed), > 0 thì kết quả chỉ là một phần
+     */
+    public record Result(String text, long totalHits, int hitCount, int aggregationRows,
+                         boolean hasAggregations, boolean error, boolean truncated, int failedShards) {
+
+        public boolean hasData() {
+            return hitCount > 0 || hasAggregations;
+        }
+    }
+
+    public static Shape shape(String json) {
+        if (json == null) {
+            return new Shape(false, false, -1, 0, false, 0);
+        }
+        try (JsonParser parser = OBJECT_MAPPER.getFactory().createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return new Shape(false, false, -1, 0, false, 0);
+            }
+            boolean error = false;
+            long totalHits = -1;
+            int hitCount = 0;
+            boolean hasAggregations = false;
+            int failedShards = 0;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("error".equals(field)) {
+                    error = true;
+                    parser.skipChildren();
+                } else if ("_shards".equals(field) && value == JsonToken.START_OBJECT) {
+                    failedShards = readFailedShards(parser, null);
+                } else if ("hits".equals(field) && value == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String hitsField = parser.currentName();
+                        JsonToken hitsValue = parser.nextToken();
+                        if ("total".equals(hitsField)) {
+                            totalHits = readTotal(parser, hitsValue);
+                        } else if ("hits".equals(hitsField) && hitsValue == JsonToken.START_ARRAY) {
+                            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                                hitCount++;
+                                parser.skipChildren();
+                            }
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                } else if ("aggregations".equals(field) && value == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        hasAggregations = true;
+                        parser.nextToken();
+                        parser.skipChildren();
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return new Shape(true, error, totalHits, hitCount, hasAggregations, failedShards);
+        } catch (IOException e) {
+            return new Shape(false, false, -1, 0, false, 0);
+        }
+    }
+
+    /**
+     * Bản gọn của response; response không phải JSON hợp lệ thì trả về nguyên văn (cắt ở maxChars)
+     */
+    public static Result compact(String json, int maxRows, int maxChars) {
+        Compaction compaction = new Compaction(Math.max(1, maxRows));
+        try (JsonParser parser = OBJECT_MAPPER.getFactory().createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Response không phải JSON object");
+            }
+            compaction.parseRoot(parser);
+        } catch (IOException e) {
+            boolean truncated = json.length() > maxChars;
+            return new Result(truncated ? json.substring(0, maxChars) : json, -1, 0, 0, false, false, truncated, 0);
+        }
+        return compaction.render(maxChars);
+    }
+
+    /**
+     * _shards: {"failed": n, "failures": [{"index": ..., "reason": {"type": ..., "reason": ...}}]}
+     * reasons != null thì ghi "index: type: reason" của từng failure (tối đa MAX_SHARD_FAILURE_REASONS)
+     */
+    private static int readFailedShards(JsonParser parser, List<String> reasons) throws IOException {
+        int failed = 0;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if ("failed".equals(field)) {
+                failed = parser.getValueAsInt(0);
+            } else if ("failures".equals(field) && value == JsonToken.START_ARRAY && reasons != null) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    JsonNode failure = parser.readValueAsTree();
+                    if (reasons.size() < MAX_SHARD_FAILURE_REASONS) {
+                        JsonNode reason = failure.path("reason");
+                        reasons.add(truncate(failure.path("index").asText("?") + ": "
+                            + reason.path("type").asText("") + ": " + reason.path("reason").asText("")));
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return failed;
+    }
+
+    private static long readTotal(JsonParser parser, JsonToken token) throws IOException {
+        if (token.isNumeric()) {
+            return parser.getLongValue();
+        }
+        long total = -1;
+        if (token == JsonToken.START_OBJECT) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                if ("value".equals(field)) {
+                    total = parser.getLongValue();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Trạng thái của một lần compact
+     */
+    private static final class Compaction {
+
+        private final int maxRows;
+
+        private long took = -1;
+        private long totalHits = -1;
+        private boolean timedOut;
+        private String error;
+        private int failedShards;
+        private final List<String> shardFailures = new ArrayList<>();
+
+        private final Set<String> hitColumns = new LinkedHashSet<>();
+        private final List<Map<String, String>> hitRows = new ArrayList<>();
+        private int hitCount;
+        private boolean columnsCapped;
+
+        private boolean hasAggregations;
+        private final Map<String, String> topMetrics = new LinkedHashMap<>();
+        private final Map<List<String>, List<List<String>>> aggregationTables = new LinkedHashMap<>();
+        private int aggregationRows;
+        private int storedAggregationRows;
+        private final List<String> notes = new ArrayList<>();
+
+        private Compaction(int maxRows) {
+            this.maxRows = maxRows;
+        }
+
+        private void parseRoot(JsonParser parser) throws IOException {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                switch (field) {
+                    case "took" -> took = parser.getValueAsLong(-1);
+                    case "timed_out" -> timedOut = parser.getValueAsBoolean();
+                    case "_shards" -> {
+                        if (value == JsonToken.START_OBJECT) {
+                            failedShards = readFailedShards(parser, shardFailures);
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                    case "error" -> error = truncate(value.isStructStart()
+                        ? parser.readValueAsTree().toString()
+                        : parser.getValueAsString());
+                    case "hits" -> {
+                        if (value == JsonToken.START_OBJECT) {
+                            parseHits(parser);
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                    case "aggregations" -> {
+                        if (value == JsonToken.START_OBJECT) {
+                            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                                hasAggregations = true;
+                                String name = parser.currentName();
+                                if (parser.nextToken() == JsonToken.START_OBJECT) {
+                                    parseAggregation(parser, name, List.of(), topMetrics);
+                                } else {
+                                    parser.skipChildren();
+                                }
+                            }
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                    default -> parser.skipChildren();
+                }
+            }
+        }
+
+        // hits: {"total": ..., "hits": [{"_source": {...}, "fields": {...}, "highlight": {...}, "sort": [...]}, ...]}
+        private void parseHits(JsonParser parser) throws IOException {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("total".equals(field)) {
+                    totalHits = readTotal(parser, value);
+                } else if ("hits".equals(field) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        hitCount++;
+                        if (hitRows.size() >= maxRows) {
+                            parser.skipChildren();
+                            continue;
+                        }
+                        Map<String, String> row = new LinkedHashMap<>();
+                        readHit(parser, row);
+                        hitRows.add(row);
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+
+        // Các phần filter_path giữ lại: _source / fields → cột theo tên field, highlight → "highlight.<field>",
+        // sort → cột "sort" (giá trị sort, cần cho search_after), inner_hits → "inner_hits.<tên>" dạng top_hits
+        private void readHit(JsonParser parser, Map<String, String> row) throws IOException {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if (("_source".equals(field) || "fields".equals(field)) && value == JsonToken.START_OBJECT) {
+                    flatten(parser, "", row, true);
+                } else if ("highlight".equals(field) && value == JsonToken.START_OBJECT) {
+                    flatten(parser, "highlight", row, true);
+                } else if ("sort".equals(field) && value == JsonToken.START_ARRAY) {
+                    putCell(row, "sort", readArray(parser), true);
+                } else if ("inner_hits".equals(field) && value == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String name = parser.currentName();
+                        putCell(row, "inner_hits." + name, truncate(readInnerHits(parser, parser.nextToken())), true);
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+
+        // inner_hits.<tên>: {"hits": {"total": ..., "hits": [...]}}, phần "hits" cùng dạng với top_hits
+        private String readInnerHits(JsonParser parser, JsonToken value) throws IOException {
+            if (value != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                return "";
+            }
+            String hits = "";
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken hitsValue = parser.nextToken();
+                if ("hits".equals(field)) {
+                    hits = readTopHits(parser, hitsValue);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return hits;
+        }
+
+        /**
+         * Object lồng nhau → các cột "a.b.c"; mảng → giá trị nối bằng ", "
+         */
+        private void flatten(JsonParser parser, String prefix, Map<String, String> row, boolean trackColumns)
+            throws IOException {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String column = prefix.isEmpty() ? parser.currentName() : prefix + "." + parser.currentName();
+                JsonToken value = parser.nextToken();
+                if (value == JsonToken.START_OBJECT) {
+                    flatten(parser, column, row, trackColumns);
+                    continue;
+                }
+                String text = value == JsonToken.START_ARRAY ? readArray(parser) : scalar(parser, value);
+                putCell(row, column, text, trackColumns);
+            }
+        }
+
+        private void putCell(Map<String, String> row, String column, String text, boolean trackColumns) {
+            if (trackColumns && !hitColumns.contains(column)) {
+                if (hitColumns.size() >= MAX_COLUMNS) {
+                    columnsCapped = true;
+                    return;
+                }
+                hitColumns.add(column);
+            }
+            row.putIfAbsent(column, text);
+        }
+
+        private String readArray(JsonParser parser) throws IOException {
+            StringBuilder text = new StringBuilder();
+            JsonToken element;
+            while ((element = parser.nextToken()) != JsonToken.END_ARRAY) {
+                if (text.length() >= MAX_CELL_CHARS) {
+                    parser.skipChildren();
+                    continue;
+                }
+                if (!text.isEmpty()) {
+                    text.append(", ");
+                }
+                text.append(element.isStructStart() ? parser.readValueAsTree().toString() : scalar(parser, element));
+            }
+            return truncate(text.toString());
+        }
+
+        /**
+         * Một aggregation: bucket (mảng hoặc keyed) → dòng phẳng; metric → metrics của bucket cha
+         *
+         * @return true nếu đã sinh dòng bucket
+         */
+        private boolean parseAggregation(JsonParser parser, String name, List<String[]> keys,
+                                         Map<String, String> metrics) throws IOException {
+            boolean emitted = false;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                switch (field) {
+                    case "buckets" -> {
+                        if (value == JsonToken.START_ARRAY) {
+                            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                                parseBucket(parser, name, null, keys);
+                            }
+                            emitted = true;
+                        } else if (value == JsonToken.START_OBJECT) {
+                            // filters / range keyed: {"tên bucket": {...}}
+                            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                                String bucketKey = parser.currentName();
+                                parser.nextToken();
+                                parseBucket(parser, name, bucketKey, keys);
+                            }
+                            emitted = true;
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                    // value_as_string đứng sau value nên ghi đè bằng bản dễ đọc
+                    case "value", "value_as_string" -> metrics.put(name, scalar(parser, value));
+                    case "hits" -> metrics.put(name, readTopHits(parser, value));
+                    case "sum_other_doc_count" -> {
+                        long others = parser.getValueAsLong(0);
+                        if (others > 0) {
+                            notes.add(name + ": sum_other_doc_count=" + others + " (bucket không hiển thị)");
+                        }
+                    }
+                    case "meta", "after_key", "doc_count_error_upper_bound" -> parser.skipChildren();
+                    default -> {
+                        if (value == JsonToken.START_OBJECT) {
+                            // percentiles "values" hoặc sub-aggregation của aggregation một bucket (filter, missing, ...)
+                            emitted |= parseAggregation(parser, name + "." + field, keys, metrics);
+                        } else if (value == JsonToken.START_ARRAY) {
+                            metrics.put(name + "." + field, readArray(parser));
+                        } else {
+                            // doc_count của aggregation một bucket, count/min/max/avg/sum của stats
+                            metrics.put(name + "." + field, scalar(parser, value));
+                        }
+                    }
+                }
+            }
+            return emitted;
+        }
+
+        private void parseBucket(JsonParser parser, String aggregation, String keyedName, List<String[]> keys)
+            throws IOException {
+            String key = keyedName;
+            String docCount = null;
+            Map<String, String> metrics = new LinkedHashMap<>();
+            boolean childEmitted = false;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                switch (field) {
+                    case "key" -> {
+                        if (value == JsonToken.START_OBJECT) {
+                            // composite: {"a": x, "b": y}
+                            Map<String, String> parts = new LinkedHashMap<>();
+                            flatten(parser, "", parts, false);
+                            key = parts.toString();
+                        } else if (keyedName == null && key == null) {
+                            key = scalar(parser, value);
+                        }
+                    }
+                    // key_as_string (ngày, IP, ...) đứng trước key nên key số không ghi đè nữa
+                    case "key_as_string" -> key = scalar(parser, value);
+                    case "doc_count" -> docCount = scalar(parser, value);
+                    default -> {
+                        if (value == JsonToken.START_OBJECT) {
+                            List<String[]> nested = new ArrayList<>(keys);
+                            nested.add(new String[]{aggregation, key});
+                            nested.add(new String[]{aggregation + ".doc_count", docCount});
+                            childEmitted |= parseAggregation(parser, field, nested, metrics);
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                }
+            }
+            // Bucket chỉ chứa bucket con thì dòng của bucket con đã mang key / doc_count của bucket này
+            if (childEmitted && metrics.isEmpty()) {
+                return;
+            }
+            List<String> columns = new ArrayList<>();
+            List<String> values = new ArrayList<>();
+            for (String[] parentKey : keys) {
+                columns.add(parentKey[0]);
+                values.add(parentKey[1]);
+            }
+            columns.add(aggregation);
+            values.add(key);
+            columns.add("doc_count");
+            values.add(docCount);
+            metrics.forEach((metric, metricValue) -> {
+                columns.add(metric);
+                values.add(metricValue);
+            });
+            addAggregationRow(columns, values);
+        }
+
+        // top_hits: chỉ giữ _source của từng hit dạng "a=x, b=y", các hit cách nhau bằng " ; "
+        private String readTopHits(JsonParser parser, JsonToken value) throws IOException {
+            if (value != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                return "";
+            }
+            List<String> hits = new ArrayList<>();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken hitsValue = parser.nextToken();
+                if ("hits".equals(field) && hitsValue == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        Map<String, String> source = new LinkedHashMap<>();
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            String hitField = parser.currentName();
+                            if (parser.nextToken() == JsonToken.START_OBJECT
+                                && ("_source".equals(hitField) || "fields".equals(hitField))) {
+                                flatten(parser, "", source, false);
+                            } else {
+                                parser.skipChildren();
+                            }
+                        }
+                        StringBuilder hit = new StringBuilder();
+                        source.forEach((column, text) -> {
+                            if (!hit.isEmpty()) {
+                                hit.append(", ");
+                            }
+                            hit.append(column).append('=').append(text);
+                        });
+                        hits.add(hit.toString());
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return String.join(" ; ", hits);
+        }
+
+        private void addAggregationRow(List<String> columns, List<String> values) {
+            aggregationRows++;
+            if (storedAggregationRows >= maxRows) {
+                return;
+            }
+            storedAggregationRows++;
+            aggregationTables.computeIfAbsent(columns, ignored -> new ArrayList<>()).add(values);
+        }
+
+        private Result render(int maxChars) {
+            Output out = new Output(maxChars);
+            if (error != null) {
+                out.line("error: " + error);
+            }
+            out.line("total_hits: " + totalHits + (took >= 0 ? " | took: " + took + "ms" : "")
+                + (timedOut ? " | timed_out: true" : ""));
+            if (failedShards > 0) {
+                // Đặt ngay đầu để không bị cắt bởi maxChars: kết quả thiếu dữ liệu của các shard lỗi
+                out.line("partial_results: " + failedShards + " shard(s) failed, số liệu dưới đây có thể thiếu");
+                shardFailures.forEach(reason -> out.line("shard_failure: " + reason));
+            }
+
+            if (!hitRows.isEmpty()) {
+                renderHits(out);
+            }
+
+            if (!topMetrics.isEmpty()) {
+                out.line("");
+                out.line("metrics:");
+                topMetrics.forEach((metric, value) -> out.line(metric + " = " + value));
+            }
+            for (Map.Entry<List<String>, List<List<String>>> table : aggregationTables.entrySet()) {
+                out.line("");
+                out.line("aggregation (" + table.getValue().size() + " rows):");
+                out.line(String.join(" | ", table.getKey()));
+                for (List<String> row : table.getValue()) {
+                    out.line(joinCells(row));
+                }
+            }
+            if (aggregationRows > storedAggregationRows) {
+                out.line("... +" + (aggregationRows - storedAggregationRows) + " dòng aggregation không hiển thị (giới hạn " + maxRows + " dòng)");
+            }
+            notes.forEach(out::line);
+
+            boolean truncated = out.truncated
+                || hitCount > hitRows.size()
+                || aggregationRows > storedAggregationRows
+                || columnsCapped;
+            return new Result(out.toString(), totalHits, hitCount, aggregationRows, hasAggregations,
+                error != null, truncated, failedShards);
+        }
+
+        // Cột có cùng giá trị ở mọi dòng → "constant", dòng giống hệt nhau → một dòng kèm ×n
+        private void renderHits(Output out) {
+            List<String> constants = new ArrayList<>();
+            List<String> columns = new ArrayList<>();
+            for (String column : hitColumns) {
+                String first = hitRows.get(0).get(column);
+                boolean constant = hitRows.size() > 1 && first != null;
+                for (int i = 1; constant && i < hitRows.size(); i++) {
+                    constant = first.equals(hitRows.get(i).get(column));
+                }
+                if (constant) {
+                    constants.add(column + "=" + first);
+                } else {
+                    columns.add(column);
+                }
+            }
+
+            Map<List<String>, Integer> uniqueRows = new LinkedHashMap<>();
+            for (Map<String, String> row : hitRows) {
+                List<String> values = new ArrayList<>(columns.size());
+                for (String column : columns) {
+                    values.add(row.get(column));
+                }
+                uniqueRows.merge(values, 1, Integer::sum);
+            }
+
+            out.line("");
+            out.line("hits (" + hitRows.size() + " rows"
+                + (uniqueRows.size() < hitRows.size() ? ", " + uniqueRows.size() + " unique" : "") + "):");
+            constants.forEach(constant -> out.line("constant: " + constant));
+            if (!columns.isEmpty()) {
+                out.line(String.join(" | ", columns));
+                uniqueRows.forEach((values, count) -> out.line(joinCells(values) + (count > 1 ? "  ×" + count : "")));
+            }
+            if (hitCount > hitRows.size()) {
+                out.line("... +" + (hitCount - hitRows.size()) + " hits không hiển thị (giới hạn " + maxRows + " dòng)");
+            }
+            if (columnsCapped) {
+                out.line("... một số cột bị bỏ (giới hạn " + MAX_COLUMNS + " cột)");
+            }
+        }
+
+        private static String joinCells(List<String> values) {
+            StringBuilder row = new StringBuilder();
+            for (int i = 0; i < values.size(); i++) {
+                if (i > 0) {
+                    row.append(" | ");
+                }
+                String value = values.get(i);
+                if (value != null) {
+                    row.append(value.replace('\n', ' ').replace("|", "\\|"));
+                }
+            }
+            return row.toString();
+        }
+    }
+
+    /**
+     * StringBuilder có giới hạn ký tự: vượt giới hạn thì dừng ghi và đánh dấu truncated
+     */
+    private static final class Output {
+
+        private final int maxChars;
+        private final StringBuilder text = new StringBuilder();
+        private boolean truncated;
+
+        private Output(int maxChars) {
+            this.maxChars = maxChars;
+        }
+
+        private void line(String line) {
+            if (truncated) {
+                return;
+            }
+            if (text.length() + line.length() + 1 > maxChars) {
+                truncated = true;
+                text.append("... (cắt ở ").append(maxChars).append(" ký tự)\n");
+                return;
+            }
+            text.append(line).append('\n');
+        }
+
+        @Override
+        public String toString() {
+            return text.toString();
+        }
+    }
+
+    private static String scalar(JsonParser parser, JsonToken token) throws IOException {
+        return token == JsonToken.VALUE_NULL ? "null" : truncate(parser.getValueAsString());
+    }
+
+    private static String truncate(String text) {
+        if (text == null) {
+            return null;
+        }
+        return text.length() > MAX_CELL_CHARS ? text.substring(0, MAX_CELL_CHARS) + "…" : text;
+    }
+}
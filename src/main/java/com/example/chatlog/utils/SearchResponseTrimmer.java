@@ -0,0 +1,148 @@
+package com.example.chatlog.utils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Thu gọn response _search trước khi đưa vào context của LLM
+ *
+ * - filter_path: bỏ _index, _id, _score, max_score và phần lớn _shards; giữ took, hits.total, _source, sort, fields,
+ *   highlight, aggregations, thông tin lỗi và _shards.failed / _shards.failures (kết quả thiếu do shard lỗi)
+ * - _source includes: khi query đã chỉ định cột (fields / docvalue_fields) thì _source chỉ giữ các cột đó
+ *   cộng với field dùng trong sort và aggs; query tự khai báo _source thì giữ nguyên
+ * - size = 0 (chỉ aggregation): _source = false
+ *
+ * filter_path bỏ cả mảng hits.hits khi không có kết quả, restoreEmptyHits() thêm lại "hits":[] để các bước
+ * phân loại response phía sau (0 hits / có dữ liệu) không đổi
+ */
+public class SearchResponseTrimmer {
+
+    public static final String FILTER_PATH = String.join(",",
+        "took", "timed_out", "_shards.failed", "_shards.failures", "hits.total",
+        "hits.hits._source", "hits.hits.sort", "hits.hits.fields", "hits.hits.highlight", "hits.hits.inner_hits",
+        "aggregations", "error", "status");
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    /**
+     * Body đã thêm _source phù hợp; body không phải JSON object thì trả về nguyên vẹn
+     */
+    public static String trimRequest(String body) {
+        JsonNode root;
+        try {
+            root = OBJECT_MAPPER.readTree(body);
+        } catch (Exception e) {
+            return body;
+        }
+        if (!(root instanceof ObjectNode query) || query.has("_source")) {
+            return body;
+        }
+
+        JsonNode size = query.get("size");
+        if (size != null && size.isNumber() && size.asInt() == 0) {
+            query.put("_source", false);
+            return query.toString();
+        }
+
+        Set<String> columns = new LinkedHashSet<>();
+        collectColumns(query.get("fields"), columns);
+        collectColumns(query.get("docvalue_fields"), columns);
+        if (columns.isEmpty()) {
+            // Không có cột chỉ định: LLM có thể cần mọi field trong _source, giữ nguyên để không đổi câu trả lời
+            return body;
+        }
+        collectSortFields(query.get("sort"), columns);
+        collectAggFields(query.has("aggs") ? query.get("aggs") : query.get("aggregations"), columns);
+
+        ArrayNode includes = query.putObject("_source").putArray("includes");
+        columns.forEach(includes::add);
+        return query.toString();
+    }
+
+    /**
+     * Thêm lại "hits":[] nếu filter_path đã bỏ mảng hits rỗng
+     */
+    public static String restoreEmptyHits(String response) {
+        if (response == null || response.contains("\"hits\":[")) {
+            return response;
+        }
+        try {
+            JsonNode root = OBJECT_MAPPER.readTree(response);
+            if (!(root instanceof ObjectNode object) || object.has("error")) {
+                return response;
+            }
+            JsonNode hits = object.get("hits");
+            ObjectNode hitsObject = hits instanceof ObjectNode existing ? existing : object.putObject("hits");
+            hitsObject.putArray("hits");
+            return object.toString();
+        } catch (Exception e) {
+            return response;
+        }
+    }
+
+    // "fields": ["a", {"field": "b", "format": ...}]
+    private static void collectColumns(JsonNode node, Set<String> columns) {
+        if (node == null || !node.isArray()) {
+            return;
+        }
+        for (JsonNode column : node) {
+            if (column.isTextual()) {
+                columns.add(column.asText());
+            } else if (column.hasNonNull("field")) {
+                columns.add(column.get("field").asText());
+            }
+        }
+    }
+
+    // "sort": "a" | ["a", {"b": "desc"}, {"c": {"order": "asc"}}]
+    private static void collectSortFields(JsonNode sort, Set<String> columns) {
+        if (sort == null) {
+            return;
+        }
+        if (sort.isTextual()) {
+            addField(sort.asText(), columns);
+        } else if (sort.isArray()) {
+            for (JsonNode entry : sort) {
+                collectSortFields(entry, columns);
+            }
+        } else if (sort.isObject()) {
+            sort.fieldNames().forEachRemaining(field -> addField(field, columns));
+        }
+    }
+
+    // Mọi "field" trong cây aggs (terms, date_histogram, sum, ... kể cả sub-aggs)
+    private static void collectAggFields(JsonNode node, Set<String> columns) {
+        if (node == null || !node.isContainerNode()) {
+            return;
+        }
+        if (node.isArray()) {
+            for (JsonNode child : node) {
+                collectAggFields(child, columns);
+            }
+            return;
+        }
+        Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> entry = fields.next();
+            if ("field".equals(entry.getKey()) && entry.getValue().isTextual()) {
+                addField(entry.getValue().asText(), columns);
+            } else {
+                collectAggFields(entry.getValue(), columns);
+            }
+        }
+    }
+
+    // Bỏ field đặc biệt (_score, _doc, ...), không có trong _source
+    private static void addField(String field, Set<String> columns) {
+        if (!field.startsWith("_")) {
+            columns.add(field);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.example.chatlog.utils;
+
+import java.text.Normalizer;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Lớp tiện ích chuẩn hóa text tiếng Việt/tiếng Anh để so khớp
+ * Ví dụ: "  IP  Nguồn bị CHẶN " → "ip nguon bi chan"
+ */
+public class TextNormalizer {
+
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    /**
+     * Chuẩn hóa: bỏ dấu tiếng Việt (kể cả đ/Đ), chữ thường, gộp khoảng trắng
+     */
+    public static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        String withoutMarks = COMBINING_MARKS.matcher(decomposed).replaceAll("")
+            .replace('đ', 'd')
+            .replace('Đ', 'D');
+        return WHITESPACE.matcher(withoutMarks.toLowerCase(Locale.ROOT)).replaceAll(" ").trim();
+    }
+}
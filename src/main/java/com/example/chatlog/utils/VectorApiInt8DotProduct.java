@@ -0,0 +1,45 @@
+package com.example.chatlog.utils;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Int8DotProduct dùng Vector API (SIMD): mỗi vòng nạp N byte, mở rộng thành N float rồi fma với query
+ *
+ * Chỉ được nạp qua Int8DotProduct.best() khi module jdk.incubator.vector có mặt
+ */
+final class VectorApiInt8DotProduct implements Int8DotProduct {
+
+    // Cần ít nhất 8 lane để vector byte tương ứng đủ 64 bit (shape nhỏ nhất của Vector API)
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED.length() >= 8
+        ? FloatVector.SPECIES_PREFERRED
+        : FloatVector.SPECIES_256;
+    private static final VectorSpecies<Byte> BYTES =
+        VectorSpecies.of(byte.class, VectorShape.forBitSize(FLOATS.length() * Byte.SIZE));
+
+    @Override
+    public float dot(byte[] codes, int offset, float[] query, int dimensions) {
+        FloatVector acc = FloatVector.zero(FLOATS);
+        int step = FLOATS.length();
+        int bound = FLOATS.loopBound(dimensions);
+        int i = 0;
+        for (; i < bound; i += step) {
+            FloatVector c = (FloatVector) ByteVector.fromArray(BYTES, codes, offset + i)
+                .convertShape(VectorOperators.B2F, FLOATS, 0);
+            acc = c.fma(FloatVector.fromArray(FLOATS, query, i), acc);
+        }
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < dimensions; i++) {
+            sum += codes[offset + i] * query[i];
+        }
+        return sum;
+    }
+
+    @Override
+    public String name() {
+        return "vector-api(" + FLOATS.length() + "x float)";
+    }
+}
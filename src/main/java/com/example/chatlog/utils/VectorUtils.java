@@ -0,0 +1,64 @@
+package com.example.chatlog.utils;
+
+import java.sql.Array;
+import java.sql.SQLException;
+
+/**
+ * Lớp tiện ích chuyển đổi giá trị vector giữa JDBC và float[]
+ */
+public class VectorUtils {
+
+    /**
+     * Chuyển giá trị đọc từ ResultSet thành float[]
+     * Hỗ trợ: real[] (java.sql.Array), Float[]/Number[], float[] và dạng text pgvector "[0.1,0.2,...]"
+     */
+    public static float[] toFloatArray(Object value) throws SQLException {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof float[] floats) {
+            return floats;
+        }
+        if (value instanceof Array array) {
+            try {
+                return toFloatArray(array.getArray());
+            } finally {
+                array.free();
+            }
+        }
+        if (value instanceof Number[] numbers) {
+            float[] result = new float[numbers.length];
+            for (int i = 0; i < numbers.length; i++) {
+                result[i] = numbers[i] != null ? numbers[i].floatValue() : 0f;
+            }
+            return result;
+        }
+        // PGobject (type "vector") hoặc String: toString() trả về dạng text của pgvector
+        return parse(value.toString());
+    }
+
+    /**
+     * Parse chuỗi pgvector "[0.1,0.2,...]" (hoặc array literal "{0.1,0.2,...}") thành float[]
+     */
+    public static float[] parse(String text) {
+        if (text == null) {
+            return null;
+        }
+        String trimmed = text.trim();
+        if (trimmed.startsWith("[") || trimmed.startsWith("{")) {
+            trimmed = trimmed.substring(1);
+        }
+        if (trimmed.endsWith("]") || trimmed.endsWith("}")) {
+            trimmed = trimmed.substring(0, trimmed.length() - 1);
+        }
+        if (trimmed.isEmpty()) {
+            return new float[0];
+        }
+        String[] parts = trimmed.split(",");
+        float[] vector = new float[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            vector[i] = Float.parseFloat(parts[i].trim());
+        }
+        return vector;
+    }
+}